@@ -40,6 +40,7 @@ public class Application extends javafx.application.Application {
         int snapshotCols = 4;
         String[] snapshotCells = new String[0];
         int snapshotCoins = 0;
+        long snapshotVersion = -1;
 
         // === 简易控制台登录/注册 ===
         Scanner sc = new Scanner(System.in);
@@ -72,16 +73,9 @@ public class Application extends javafx.application.Application {
 
                             snapshotRows = res.path("rows").asInt(4);
                             snapshotCols = res.path("cols").asInt(4);
-                            JsonNode cellsNode = res.path("cells");
-                            if (cellsNode != null && cellsNode.isArray()) {
-                                snapshotCells = new String[cellsNode.size()];
-                                for (int i = 0; i < cellsNode.size(); i++) {
-                                    snapshotCells[i] = cellsNode.get(i).asText("EMPTY");
-                                }
-                            } else {
-                                snapshotCells = new String[0];
-                            }
+                            snapshotCells = Controller.parseCells(res.path("cells"));
                             snapshotCoins = coins;
+                            snapshotVersion = res.path("version").asLong(-1);
 
                             System.out.println("Login OK. " +
                                     "playerName=" + pname +
@@ -137,7 +131,7 @@ public class Application extends javafx.application.Application {
         controller.init(game, session);
 
         // 应用“自己的农场”快照
-        controller.applySnapshotFromServer(snapshotRows, snapshotCols, snapshotCells, snapshotCoins);
+        controller.applySnapshotFromServer(snapshotRows, snapshotCols, snapshotCells, snapshotCoins, snapshotVersion);
 
         // 登录后加载好友列表
         controller.loadFriendsFromServer();
@@ -0,0 +1,422 @@
+package org.example.demo;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 长连的二进制编码（JSON 行之外的可选协议），请求类型与 JSON 完全相同。
+ *
+ * 协商：客户端连上后先发 2 字节前导 {0xFA, 版本}；第一个字节不是 0xFA 的连接按 JSON 行处理。
+ * 之后双向都是帧：[int 长度][payload]，payload[0] 为帧类型。
+ *
+ * 请求：u8 ReqType.ordinal()，int requestId，再按类型的定长字段：
+ *   LOGIN / SIGNUP：str username，str password
+ *   PLANT / HARVEST：int playerId，u8 row，u8 col
+ *   STEAL：int playerId，int targetId，u8 row，u8 col
+ *   ADD_FRIEND：int playerId，int targetId
+ *   VISIT_FARM：int playerId，int targetId，long knownVersion（-1 表示没有）
+ *   LIST_FRIENDS：int playerId
+ *   PLANT_ALL / HARVEST_ALL：int playerId，u16 n（0xFFFF 表示所有符合条件的格子），n 个 u16 格子下标
+ * 服务器帧：
+ *   RESP：int requestId，u8 ok，str msg，int 字段位图，再按位图顺序写出非空字段（见 F_*）
+ *   PUSH_DELTA：int ownerId，int coins，long since，long version，u16 n，n 个（u16 格子下标，u8 state）
+ *   PUSH_SNAPSHOT：int ownerId，board，long version，int coins
+ *   INFO：str msg
+ * str = u16 长度 + UTF-8；board = u8 rows，u8 cols，2-bit 打包的格子状态（同 {@link FarmSnapshot}）。
+ */
+class BinaryCodec {
+
+    static final int MAGIC = 0xFA;
+    static final int VERSION = 3;
+    static final int MAX_FRAME = 1 << 20;
+
+    // 服务器帧类型
+    static final byte RESP = 1;
+    static final byte PUSH_DELTA = 2;
+    static final byte PUSH_SNAPSHOT = 3;
+    static final byte INFO = 4;
+
+    // RESP 可选字段位
+    private static final int F_PLAYER_ID = 1, F_COINS = 1 << 1, F_SESSION = 1 << 2, F_PLAYER_NAME = 1 << 3,
+            F_ROW = 1 << 4, F_COL = 1 << 5, F_PLOT_STATE = 1 << 6, F_BOARD = 1 << 7,
+            F_FRIEND_ID = 1 << 8, F_FRIEND_NAME = 1 << 9, F_FRIENDS = 1 << 10, F_TARGET_ID = 1 << 11,
+            F_TARGET_NAME = 1 << 12, F_OWNER_ONLINE = 1 << 13, F_CAN_STEAL = 1 << 14, F_OWNER_COINS = 1 << 15,
+            F_COUNT = 1 << 16, F_VERSION = 1 << 17, F_SYNC = 1 << 18, F_DELTA = 1 << 19;
+
+    /** VISIT_FARM 的 sync 取值，线上按下标编码为 u8 */
+    private static final List<String> SYNC_KINDS = List.of("UNCHANGED", "DELTA", "FULL");
+
+    private static final Server.ReqType[] REQ_TYPES = Server.ReqType.values();
+    private static final Server.PlotState[] PLOT_STATES = Server.PlotState.values();
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    static byte[] preamble() { return new byte[] { (byte) MAGIC, (byte) VERSION }; }
+
+    // ===== 请求（客户端编码，服务器解码） =====
+
+    static byte[] encodeRequest(String type, int requestId, Map<String, ?> f) {
+        Server.ReqType rt = Server.ReqType.valueOf(type);
+        Frame out = new Frame(32);
+        out.u8(rt.ordinal()).i32(requestId);
+        switch (rt) {
+            case LOGIN, SIGNUP -> out.str(str(f, "username")).str(str(f, "password"));
+            case PLANT, HARVEST -> out.i32(i32(f, "playerId")).u8(i32(f, "row")).u8(i32(f, "col"));
+            case STEAL -> out.i32(i32(f, "playerId")).i32(i32(f, "targetId")).u8(i32(f, "row")).u8(i32(f, "col"));
+            case ADD_FRIEND -> out.i32(i32(f, "playerId")).i32(i32(f, "targetId"));
+            case VISIT_FARM -> out.i32(i32(f, "playerId")).i32(i32(f, "targetId"))
+                    .i64(f != null && f.get("knownVersion") instanceof Number v ? v.longValue() : -1);
+            case LIST_FRIENDS -> out.i32(i32(f, "playerId"));
+            case PLANT_ALL, HARVEST_ALL -> {
+                out.i32(i32(f, "playerId"));
+                int[] cells = f != null && f.get("cells") instanceof int[] a ? a : null;
+                if (cells == null) {
+                    out.u16(0xFFFF);
+                } else {
+                    out.u16(cells.length);
+                    for (int c : cells) out.u16(c);
+                }
+            }
+            case PING -> {}
+        }
+        return out.finish();
+    }
+
+    static Server.Request decodeRequest(byte[] frame) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            int code = in.get() & 0xFF;
+            if (code >= REQ_TYPES.length) throw new IOException("unknown request type " + code);
+            Server.ReqType rt = REQ_TYPES[code];
+            Server.Request q = new Server.Request();
+            q.type = rt.name();
+            q.requestId = String.valueOf(in.getInt());
+            switch (rt) {
+                case LOGIN, SIGNUP -> { q.username = getStr(in); q.password = getStr(in); }
+                case PLANT, HARVEST -> { q.playerId = in.getInt(); q.row = in.get() & 0xFF; q.col = in.get() & 0xFF; }
+                case STEAL -> {
+                    q.playerId = in.getInt(); q.targetId = in.getInt();
+                    q.row = in.get() & 0xFF; q.col = in.get() & 0xFF;
+                }
+                case ADD_FRIEND -> { q.playerId = in.getInt(); q.targetId = in.getInt(); }
+                case VISIT_FARM -> {
+                    q.playerId = in.getInt(); q.targetId = in.getInt();
+                    long known = in.getLong();
+                    if (known >= 0) q.knownVersion = known;
+                }
+                case LIST_FRIENDS -> q.playerId = in.getInt();
+                case PLANT_ALL, HARVEST_ALL -> {
+                    q.playerId = in.getInt();
+                    int n = in.getShort() & 0xFFFF;
+                    if (n != 0xFFFF) {
+                        q.cells = new int[n];
+                        for (int i = 0; i < n; i++) q.cells[i] = in.getShort() & 0xFFFF;
+                    }
+                }
+                case PING -> {}
+            }
+            return q;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated request frame");
+        }
+    }
+
+    // ===== 服务器帧（服务器编码，客户端解码） =====
+
+    static byte[] encodeResp(Server.RespShell r) {
+        // 各响应 DTO 的字段摊平到同一张位图上，线格式与字段来自哪个类无关
+        Integer playerId = null, coins = null, row = null, col = null, rows = null, cols = null;
+        Integer friendId = null, targetId = null, ownerCoins = null, count = null;
+        Long version = null;
+        String session = null, playerName = null, plotState = null, cells = null, friendName = null, targetName = null;
+        String sync = null, deltaStates = null;
+        int[] deltaCells = null;
+        Boolean ownerOnline = null, canSteal = null;
+        List<Server.FriendInfo> friends = null;
+        if (r instanceof Server.LoginResp l) {
+            playerId = l.playerId; coins = l.coins; session = l.session; playerName = l.playerName;
+            rows = l.rows; cols = l.cols; cells = l.cells; version = l.version;
+        } else if (r instanceof Server.CellResp c) {
+            playerId = c.playerId; coins = c.coins; row = c.row; col = c.col; plotState = c.plotState;
+            if (c instanceof Server.StealResp st) { targetId = st.targetId; ownerCoins = st.ownerCoins; canSteal = st.canSteal; }
+        } else if (r instanceof Server.VisitResp v) {
+            playerId = v.playerId; coins = v.coins; targetId = v.targetId; targetName = v.targetName;
+            ownerOnline = v.ownerOnline; canSteal = v.canSteal; rows = v.rows; cols = v.cols; cells = v.cells;
+            version = v.version; sync = v.sync; deltaCells = v.deltaCells; deltaStates = v.deltaStates;
+        } else if (r instanceof Server.FriendResp f) {
+            playerId = f.playerId; friendId = f.friendId; friendName = f.friendName;
+        } else if (r instanceof Server.FriendListResp f) {
+            playerId = f.playerId; friends = f.friends;
+        } else if (r instanceof Server.BatchResp b) {
+            playerId = b.playerId; count = b.count; coins = b.coins;
+        }
+
+        int mask = 0;
+        if (playerId != null) mask |= F_PLAYER_ID;
+        if (coins != null) mask |= F_COINS;
+        if (session != null) mask |= F_SESSION;
+        if (playerName != null) mask |= F_PLAYER_NAME;
+        if (row != null) mask |= F_ROW;
+        if (col != null) mask |= F_COL;
+        if (plotState != null) mask |= F_PLOT_STATE;
+        if (cells != null && rows != null && cols != null) mask |= F_BOARD;
+        if (friendId != null) mask |= F_FRIEND_ID;
+        if (friendName != null) mask |= F_FRIEND_NAME;
+        if (friends != null) mask |= F_FRIENDS;
+        if (targetId != null) mask |= F_TARGET_ID;
+        if (targetName != null) mask |= F_TARGET_NAME;
+        if (ownerOnline != null) mask |= F_OWNER_ONLINE;
+        if (canSteal != null) mask |= F_CAN_STEAL;
+        if (ownerCoins != null) mask |= F_OWNER_COINS;
+        if (count != null) mask |= F_COUNT;
+        if (version != null) mask |= F_VERSION;
+        if (sync != null) mask |= F_SYNC;
+        if (deltaCells != null && deltaStates != null) mask |= F_DELTA;
+
+        Frame out = new Frame(64);
+        out.u8(RESP).i32(requestIdOf(r.requestId)).u8(r.ok ? 1 : 0).str(r.msg).i32(mask);
+        if ((mask & F_PLAYER_ID) != 0) out.i32(playerId);
+        if ((mask & F_COINS) != 0) out.i32(coins);
+        if ((mask & F_SESSION) != 0) out.str(session);
+        if ((mask & F_PLAYER_NAME) != 0) out.str(playerName);
+        if ((mask & F_ROW) != 0) out.u8(row);
+        if ((mask & F_COL) != 0) out.u8(col);
+        if ((mask & F_PLOT_STATE) != 0) out.u8(Server.PlotState.valueOf(plotState).ordinal());
+        if ((mask & F_BOARD) != 0) out.board(rows, cols, cells);
+        if ((mask & F_FRIEND_ID) != 0) out.i32(friendId);
+        if ((mask & F_FRIEND_NAME) != 0) out.str(friendName);
+        if ((mask & F_FRIENDS) != 0) {
+            out.u16(friends.size());
+            for (Server.FriendInfo fi : friends) out.i32(fi.id).str(fi.name);
+        }
+        if ((mask & F_TARGET_ID) != 0) out.i32(targetId);
+        if ((mask & F_TARGET_NAME) != 0) out.str(targetName);
+        if ((mask & F_OWNER_ONLINE) != 0) out.u8(ownerOnline ? 1 : 0);
+        if ((mask & F_CAN_STEAL) != 0) out.u8(canSteal ? 1 : 0);
+        if ((mask & F_OWNER_COINS) != 0) out.i32(ownerCoins);
+        if ((mask & F_COUNT) != 0) out.u16(count);
+        if ((mask & F_VERSION) != 0) out.i64(version);
+        if ((mask & F_SYNC) != 0) out.u8(SYNC_KINDS.indexOf(sync));
+        if ((mask & F_DELTA) != 0) out.cells(deltaCells, deltaStates);
+        return out.finish();
+    }
+
+    static byte[] encodeDelta(Server.PushFarmDelta d) {
+        Frame out = new Frame(32 + 3 * d.cells.length);
+        out.u8(PUSH_DELTA).i32(d.playerId).i32(d.coins).i64(d.since).i64(d.version).cells(d.cells, d.states);
+        return out.finish();
+    }
+
+    static byte[] encodeSnapshot(Server.PushFarmSnapshot s) {
+        return new Frame(32).u8(PUSH_SNAPSHOT).i32(s.playerId).board(s.rows, s.cols, s.cells).i64(s.version).i32(s.coins).finish();
+    }
+
+    static byte[] encodeInfo(String msg) {
+        return new Frame(16).u8(INFO).str(msg).finish();
+    }
+
+    /** 解码成与 JSON 消息同名字段的树，客户端沿用原来的分发和 UI 代码 */
+    static ObjectNode decodeServerFrame(byte[] frame) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(frame);
+            ObjectNode n = NODES.objectNode();
+            switch (in.get()) {
+                case RESP -> {
+                    n.put("type", "RESP");
+                    n.put("requestId", String.valueOf(in.getInt()));
+                    n.put("ok", in.get() != 0);
+                    n.put("msg", getStr(in));
+                    int mask = in.getInt();
+                    if ((mask & F_PLAYER_ID) != 0) n.put("playerId", in.getInt());
+                    if ((mask & F_COINS) != 0) n.put("coins", in.getInt());
+                    if ((mask & F_SESSION) != 0) n.put("session", getStr(in));
+                    if ((mask & F_PLAYER_NAME) != 0) n.put("playerName", getStr(in));
+                    if ((mask & F_ROW) != 0) n.put("row", in.get() & 0xFF);
+                    if ((mask & F_COL) != 0) n.put("col", in.get() & 0xFF);
+                    if ((mask & F_PLOT_STATE) != 0) n.put("plotState", PLOT_STATES[kind(in, PLOT_STATES.length, "plotState")].name());
+                    if ((mask & F_BOARD) != 0) getBoard(in, n);
+                    if ((mask & F_FRIEND_ID) != 0) n.put("friendId", in.getInt());
+                    if ((mask & F_FRIEND_NAME) != 0) n.put("friendName", getStr(in));
+                    if ((mask & F_FRIENDS) != 0) {
+                        ArrayNode arr = n.putArray("friends");
+                        for (int i = in.getShort() & 0xFFFF; i > 0; i--) {
+                            ObjectNode fi = arr.addObject();
+                            fi.put("id", in.getInt());
+                            fi.put("name", getStr(in));
+                        }
+                    }
+                    if ((mask & F_TARGET_ID) != 0) n.put("targetId", in.getInt());
+                    if ((mask & F_TARGET_NAME) != 0) n.put("targetName", getStr(in));
+                    if ((mask & F_OWNER_ONLINE) != 0) n.put("ownerOnline", in.get() != 0);
+                    if ((mask & F_CAN_STEAL) != 0) n.put("canSteal", in.get() != 0);
+                    if ((mask & F_OWNER_COINS) != 0) n.put("ownerCoins", in.getInt());
+                    if ((mask & F_COUNT) != 0) n.put("count", in.getShort() & 0xFFFF);
+                    if ((mask & F_VERSION) != 0) n.put("version", in.getLong());
+                    if ((mask & F_SYNC) != 0) n.put("sync", SYNC_KINDS.get(kind(in, SYNC_KINDS.size(), "sync")));
+                    if ((mask & F_DELTA) != 0) getCells(in, n, "deltaCells", "deltaStates");
+                }
+                case PUSH_DELTA -> {
+                    n.put("type", "PUSH_FARM_DELTA");
+                    n.put("playerId", in.getInt());
+                    n.put("coins", in.getInt());
+                    n.put("since", in.getLong());
+                    n.put("version", in.getLong());
+                    getCells(in, n, "cells", "states");
+                }
+                case PUSH_SNAPSHOT -> {
+                    n.put("type", "PUSH_FARM_SNAPSHOT");
+                    n.put("playerId", in.getInt());
+                    getBoard(in, n);
+                    n.put("version", in.getLong());
+                    n.put("coins", in.getInt());
+                }
+                case INFO -> {
+                    n.put("type", "INFO");
+                    n.put("msg", getStr(in));
+                }
+                default -> throw new IOException("unknown frame type");
+            }
+            return n;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated frame");
+        }
+    }
+
+    // ===== 工具 =====
+
+    /** 二进制 requestId 是 int；JSON 客户端发来的非数字 id 在二进制连接上不会出现 */
+    private static int requestIdOf(String rid) {
+        if (rid == null) return 0;
+        try {
+            return Integer.parseInt(rid);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String str(Map<String, ?> f, String k) {
+        Object v = f == null ? null : f.get(k);
+        return v == null ? null : v.toString();
+    }
+
+    private static int i32(Map<String, ?> f, String k) {
+        Object v = f == null ? null : f.get(k);
+        return v instanceof Number num ? num.intValue() : -1;
+    }
+
+    /** 枚举值（同步方式、格子状态）：一个无符号字节，超出范围就是坏帧 */
+    private static int kind(ByteBuffer in, int count, String what) throws IOException {
+        int v = in.get() & 0xFF;
+        if (v >= count) throw new IOException("malformed frame: " + what + "=" + v);
+        return v;
+    }
+
+    private static String getStr(ByteBuffer in) {
+        int len = in.getShort() & 0xFFFF;
+        if (len == 0xFFFF) return null;
+        if (len > in.remaining()) throw new BufferUnderflowException();
+        String s = new String(in.array(), in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+
+    private static void getBoard(ByteBuffer in, ObjectNode n) throws IOException {
+        int rows = in.get() & 0xFF, cols = in.get() & 0xFF;
+        byte[] packed = new byte[FarmSnapshot.packedBytes(rows * cols)];
+        in.get(packed);
+        n.put("rows", rows);
+        n.put("cols", cols);
+        char[] cells = new char[rows * cols];
+        for (int i = 0; i < cells.length; i++) {
+            int st = FarmSnapshot.stateAt(packed, i);
+            if (st >= Server.CELL_CHARS.length()) throw new IOException("malformed frame: cell state=" + st);
+            cells[i] = Server.CELL_CHARS.charAt(st);
+        }
+        n.put("cells", new String(cells));
+    }
+
+    /** u16 n，n 个（u16 格子下标，u8 state）→ 下标数组 + 状态字符串 */
+    private static void getCells(ByteBuffer in, ObjectNode n, String cellsField, String statesField) throws IOException {
+        int count = in.getShort() & 0xFFFF;
+        ArrayNode cells = n.putArray(cellsField);
+        char[] states = new char[count];
+        for (int i = 0; i < count; i++) {
+            cells.add(in.getShort() & 0xFFFF);
+            states[i] = Server.CELL_CHARS.charAt(kind(in, Server.CELL_CHARS.length(), "cell state"));
+        }
+        n.put(statesField, new String(states));
+    }
+
+    /** 帧构造器：预留 4 字节长度，finish 时回填 */
+    private static final class Frame {
+        private byte[] buf;
+        private int pos = 4;
+
+        Frame(int hint) { buf = new byte[Math.max(16, hint)]; }
+
+        private void ensure(int n) {
+            if (pos + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + n));
+        }
+
+        Frame u8(int v) { ensure(1); buf[pos++] = (byte) v; return this; }
+
+        Frame u16(int v) { ensure(2); buf[pos++] = (byte) (v >>> 8); buf[pos++] = (byte) v; return this; }
+
+        Frame i32(int v) {
+            ensure(4);
+            buf[pos++] = (byte) (v >>> 24); buf[pos++] = (byte) (v >>> 16);
+            buf[pos++] = (byte) (v >>> 8);  buf[pos++] = (byte) v;
+            return this;
+        }
+
+        Frame i64(long v) { return i32((int) (v >>> 32)).i32((int) v); }
+
+        /** 格子增量：cells 与 states 一一对应 */
+        Frame cells(int[] cells, String states) {
+            u16(cells.length);
+            for (int i = 0; i < cells.length; i++) u16(cells[i]).u8(Server.CELL_CHARS.indexOf(states.charAt(i)));
+            return this;
+        }
+
+        /** null 编码为长度 0xFFFF */
+        Frame str(String s) {
+            if (s == null) return u16(0xFFFF);
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            int len = Math.min(b.length, 0xFFFE);
+            u16(len);
+            ensure(len);
+            System.arraycopy(b, 0, buf, pos, len);
+            pos += len;
+            return this;
+        }
+
+        /** cells：每格一个字符（E/G/R），同 JSON 响应里的紧凑格式 */
+        Frame board(int rows, int cols, String cells) {
+            u8(rows).u8(cols);
+            int n = FarmSnapshot.packedBytes(rows * cols);
+            ensure(n);
+            byte[] packed = new byte[n];
+            for (int i = 0; i < cells.length() && i < rows * cols; i++) {
+                FarmSnapshot.setState(packed, i, Math.max(0, Server.CELL_CHARS.indexOf(cells.charAt(i))));
+            }
+            System.arraycopy(packed, 0, buf, pos, n);
+            pos += n;
+            return this;
+        }
+
+        byte[] finish() {
+            int len = pos - 4;
+            buf[0] = (byte) (len >>> 24); buf[1] = (byte) (len >>> 16);
+            buf[2] = (byte) (len >>> 8);  buf[3] = (byte) len;
+            return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+        }
+    }
+}
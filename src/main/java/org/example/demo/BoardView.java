@@ -0,0 +1,205 @@
+package org.example.demo;
+
+import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.paint.CycleMethod;
+import javafx.scene.paint.LinearGradient;
+import javafx.scene.paint.Paint;
+import javafx.scene.paint.Stop;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontWeight;
+import javafx.scene.text.TextAlignment;
+
+import java.util.function.IntConsumer;
+
+/**
+ * 农场棋盘：一块 Canvas 画所有格子，取代每格一个 ToggleButton。
+ * 画布只有视口大小：格子按视口缩放（MIN_CELL..MAX_CELL），放不下时出滚动条，只画可见的行列；
+ * 脏格只重画自己那一块，尺寸 / 滚动 / 视口变化时重画可见部分。只在 FX 线程使用。
+ */
+public final class BoardView extends Region {
+
+    /** 格子边长（含间隙）的上下限，以及格子之间的间隙 */
+    static final double MAX_CELL = 74, MIN_CELL = 20, GAP = 6;
+    /** 不滚动时视口最多放多少格（每边） */
+    private static final int PREF_CELLS = 8;
+    private static final double BAR = 14;
+
+    // 配色沿用原来格子按钮的样式：泥土棕 / 嫩绿 / 金黄
+    private static final Paint[] FILL = {
+            gradient("#d7ccc8", "#bcaaa4"),
+            gradient("#c8e6c9", "#a5d6a7"),
+            gradient("#ffe082", "#ffd54f"),
+    };
+    private static final Color[] TEXT = { Color.web("#4e342e"), Color.web("#1b5e20"), Color.web("#4e342e") };
+    private static final String[] LABEL = { "Empty", "Growing", "Ripe" };
+    private static final Color BORDER = Color.rgb(0, 0, 0, 0.15), SELECTED = Color.web("#1976d2");
+    private static final Font FONT = Font.font(null, FontWeight.SEMI_BOLD, 12);
+
+    private final Canvas canvas = new Canvas();
+    private final ScrollBar hbar = new ScrollBar(), vbar = new ScrollBar();
+    private Game game;
+    private IntConsumer onSelect;
+
+    /** 上次布局时的棋盘尺寸和格子边长 */
+    private int rows, cols;
+    private double cell = MAX_CELL;
+    private int selected = -1;
+
+    public BoardView() {
+        setPadding(new Insets(20));
+        vbar.setOrientation(Orientation.VERTICAL);
+        hbar.setVisible(false);
+        vbar.setVisible(false);
+        getChildren().addAll(canvas, hbar, vbar);
+        hbar.valueProperty().addListener(o -> paintVisible());
+        vbar.valueProperty().addListener(o -> paintVisible());
+        canvas.setOnMousePressed(e -> {
+            int i = indexAt(e.getX(), e.getY());
+            if (i >= 0 && onSelect != null) onSelect.accept(i);
+        });
+        canvas.setOnScroll(e -> {
+            scrollBy(vbar, -e.getDeltaY());
+            scrollBy(hbar, -e.getDeltaX());
+        });
+    }
+
+    /** onSelect 收到被点中的格子下标（行优先） */
+    void bind(Game game, IntConsumer onSelect) {
+        this.game = game;
+        this.onSelect = onSelect;
+        this.rows = game.getRows();
+        this.cols = game.getCols();
+        game.markAllDirty();
+        requestLayout();
+    }
+
+    /** 选中格子（-1 取消）：只重画新旧两格 */
+    void setSelected(int index) {
+        int old = selected;
+        selected = index;
+        paintCell(old);
+        paintCell(index);
+    }
+
+    /** 重画脏格；棋盘尺寸变了就重新布局 */
+    void render() {
+        if (game == null) return;
+        if (game.getRows() != rows || game.getCols() != cols) {
+            rows = game.getRows();
+            cols = game.getCols();
+            game.drainDirty(i -> {});
+            requestLayout();
+            return;
+        }
+        game.drainDirty(this::paintCell);
+    }
+
+    @Override
+    protected double computePrefWidth(double height) {
+        return snappedLeftInset() + snappedRightInset() + Math.min(cols, PREF_CELLS) * MAX_CELL;
+    }
+
+    @Override
+    protected double computePrefHeight(double width) {
+        return snappedTopInset() + snappedBottomInset() + Math.min(rows, PREF_CELLS) * MAX_CELL;
+    }
+
+    @Override
+    protected void layoutChildren() {
+        double x0 = snappedLeftInset(), y0 = snappedTopInset();
+        double w = Math.max(0, getWidth() - x0 - snappedRightInset());
+        double h = Math.max(0, getHeight() - y0 - snappedBottomInset());
+        if (rows == 0 || cols == 0) return;
+
+        cell = Math.max(MIN_CELL, Math.min(MAX_CELL, Math.min(w / cols, h / rows)));
+        boolean needV = cell * rows > h, needH = cell * cols > w - (needV ? BAR : 0);
+        if (needH && !needV) needV = cell * rows > h - BAR;
+        double viewW = w - (needV ? BAR : 0), viewH = h - (needH ? BAR : 0);
+
+        setupBar(hbar, needH, cell * cols - viewW, viewW);
+        setupBar(vbar, needV, cell * rows - viewH, viewH);
+        if (needH) hbar.resizeRelocate(x0, y0 + viewH, viewW, BAR);
+        if (needV) vbar.resizeRelocate(x0 + viewW, y0, BAR, viewH);
+
+        canvas.relocate(x0, y0);
+        canvas.setWidth(viewW);
+        canvas.setHeight(viewH);
+        paintVisible();
+    }
+
+    private static void setupBar(ScrollBar bar, boolean show, double range, double view) {
+        bar.setVisible(show);
+        bar.setMin(0);
+        bar.setMax(Math.max(0, range));
+        bar.setVisibleAmount(view);
+        bar.setUnitIncrement(MIN_CELL);
+        bar.setBlockIncrement(view);
+        if (bar.getValue() > bar.getMax()) bar.setValue(bar.getMax());
+        if (!show) bar.setValue(0);
+    }
+
+    private static void scrollBy(ScrollBar bar, double delta) {
+        if (!bar.isVisible() || delta == 0) return;
+        bar.setValue(Math.max(bar.getMin(), Math.min(bar.getMax(), bar.getValue() + delta)));
+    }
+
+    private int indexAt(double x, double y) {
+        int c = (int) ((x + hbar.getValue()) / cell), r = (int) ((y + vbar.getValue()) / cell);
+        return r >= 0 && r < rows && c >= 0 && c < cols ? r * cols + c : -1;
+    }
+
+    /** 只画与视口相交的行列 */
+    private void paintVisible() {
+        GraphicsContext g = canvas.getGraphicsContext2D();
+        g.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        if (game == null || rows == 0 || cols == 0) return;
+        double sx = hbar.getValue(), sy = vbar.getValue();
+        int c0 = (int) (sx / cell), c1 = Math.min(cols - 1, (int) ((sx + canvas.getWidth()) / cell));
+        int r0 = (int) (sy / cell), r1 = Math.min(rows - 1, (int) ((sy + canvas.getHeight()) / cell));
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) drawCell(g, r, c);
+        }
+    }
+
+    private void paintCell(int index) {
+        if (game == null || index < 0 || index >= rows * cols) return;
+        int r = index / cols, c = index % cols;
+        double x = c * cell - hbar.getValue(), y = r * cell - vbar.getValue();
+        if (x + cell <= 0 || y + cell <= 0 || x >= canvas.getWidth() || y >= canvas.getHeight()) return;
+        GraphicsContext g = canvas.getGraphicsContext2D();
+        g.clearRect(x, y, cell, cell);
+        drawCell(g, r, c);
+    }
+
+    private void drawCell(GraphicsContext g, int r, int c) {
+        int i = r * cols + c, s = game.getState(i).ordinal();
+        double x = c * cell - hbar.getValue() + GAP / 2, y = r * cell - vbar.getValue() + GAP / 2;
+        double size = cell - GAP, arc = Math.min(16, size / 3);
+        g.setFill(FILL[s]);
+        g.fillRoundRect(x, y, size, size, arc, arc);
+        boolean sel = i == selected;
+        g.setStroke(sel ? SELECTED : BORDER);
+        g.setLineWidth(sel ? 2 : 1);
+        g.strokeRoundRect(x + 0.5, y + 0.5, size - 1, size - 1, arc, arc);
+        // 格子太小时只留颜色
+        if (size >= 48) {
+            g.setFill(TEXT[s]);
+            g.setFont(FONT);
+            g.setTextAlign(TextAlignment.CENTER);
+            g.setTextBaseline(VPos.CENTER);
+            g.fillText(LABEL[s], x + size / 2, y + size / 2);
+        }
+    }
+
+    private static Paint gradient(String top, String bottom) {
+        return new LinearGradient(0, 0, 0, 1, true, CycleMethod.NO_CYCLE,
+                new Stop(0, Color.web(top)), new Stop(1, Color.web(bottom)));
+    }
+}
@@ -0,0 +1,111 @@
+package org.example.demo;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务器端的金币账本：玩家 id -> 余额。玩家 id 从 1 连续分配，按 id 直接下标到分块的 AtomicIntegerArray
+ * （每块 1024 人，用到才建），扣款 / 入账 / 转账都是单个槽上的 CAS，不加锁，也不依赖调用方持有哪块农场。
+ *
+ * 转账先从付款方扣、再给收款方加：两步之间其他线程看到的总额会暂时少一笔，但不会丢更新。
+ * 收获奖励算铸币、种地花费算销毁，另记累计值：没有操作在途时，余额总和 == 期初 + 铸币 - 销毁（见 audit）。
+ */
+class CoinLedger {
+
+    private static final int CHUNK_BITS = 10, CHUNK = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << 16;
+    /** 最多 2^16 块：可用的玩家 id 为 [0, 2^26)，即 6700 多万个 */
+    private final AtomicReferenceArray<AtomicIntegerArray> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    private final LongAdder opening = new LongAdder(), minted = new LongAdder(), burned = new LongAdder();
+    private final LongAdder transferred = new LongAdder();
+
+    /** 账本能记下这个 id 吗（players.json / WAL 里读来的 id 加载前先用它筛掉） */
+    static boolean validId(int id) {
+        return id >= 0 && (id >>> CHUNK_BITS) < MAX_CHUNKS;
+    }
+
+    private static void checkId(int id) {
+        if (!validId(id)) throw new IllegalArgumentException("player id out of range: " + id);
+    }
+
+    private AtomicIntegerArray chunk(int id) {
+        checkId(id);
+        int k = id >>> CHUNK_BITS;
+        AtomicIntegerArray c = chunks.get(k);
+        if (c == null) {
+            chunks.compareAndSet(k, null, new AtomicIntegerArray(CHUNK));
+            c = chunks.get(k);
+        }
+        return c;
+    }
+
+    int balance(int id) {
+        checkId(id);
+        AtomicIntegerArray c = chunks.get(id >>> CHUNK_BITS);
+        return c == null ? 0 : c.get(id & (CHUNK - 1));
+    }
+
+    /** 直接设定余额（注册 / 加载 / WAL 重放）：差额记进期初 */
+    void reset(int id, int balance) {
+        int old = chunk(id).getAndSet(id & (CHUNK - 1), balance);
+        opening.add((long) balance - old);
+    }
+
+    /** 扣款：余额不够时不扣，返回 -1；否则返回扣后的余额 */
+    int debit(int id, int amount) {
+        AtomicIntegerArray c = chunk(id);
+        int i = id & (CHUNK - 1);
+        while (true) {
+            int cur = c.get(i);
+            if (cur < amount) return -1;
+            if (c.compareAndSet(i, cur, cur - amount)) {
+                burned.add(amount);
+                return cur - amount;
+            }
+        }
+    }
+
+    /** 入账，返回入账后的余额 */
+    int credit(int id, int amount) {
+        int now = chunk(id).addAndGet(id & (CHUNK - 1), amount);
+        minted.add(amount);
+        return now;
+    }
+
+    /** 从 from 转给 to 至多 amount（from 余额不够时转走全部余额），返回实际转了多少 */
+    int transfer(int from, int to, int amount) {
+        AtomicIntegerArray c = chunk(from);
+        int i = from & (CHUNK - 1), moved;
+        while (true) {
+            int cur = c.get(i);
+            moved = Math.max(0, Math.min(cur, amount));
+            if (moved == 0 || c.compareAndSet(i, cur, cur - moved)) break;
+        }
+        if (moved > 0) {
+            chunk(to).addAndGet(to & (CHUNK - 1), moved);
+            transferred.add(moved);
+        }
+        return moved;
+    }
+
+    /** 所有余额之和（逐槽读，不是原子快照） */
+    long total() {
+        long sum = 0;
+        for (int k = 0; k < chunks.length(); k++) {
+            AtomicIntegerArray c = chunks.get(k);
+            if (c == null) continue;
+            for (int i = 0; i < CHUNK; i++) sum += c.get(i);
+        }
+        return sum;
+    }
+
+    /** 对账：余额总和应等于 期初 + 铸币 - 销毁（仅在没有操作在途时严格成立） */
+    String audit() {
+        long total = total(), expected = opening.sum() + minted.sum() - burned.sum();
+        return "total=" + total + " expected=" + expected + (total == expected ? " ok" : " MISMATCH")
+                + " opening=" + opening.sum() + " minted=" + minted.sum() + " burned=" + burned.sum()
+                + " transferred=" + transferred.sum();
+    }
+}
@@ -2,15 +2,11 @@ package org.example.demo;
 
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
 import javafx.scene.input.MouseButton;
-import javafx.scene.layout.GridPane;
 import javafx.scene.layout.VBox;
-import javafx.util.Duration;
 
 import java.io.*;
 import java.net.Socket;
@@ -18,17 +14,24 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
 
 public class Controller {
 
     // ====== UI ======
-    @FXML private GridPane gameBoard;
+    @FXML private BoardView gameBoard;
     @FXML private Label playerNameLabel;
     @FXML private Label playerIdLabel;
     @FXML private Label coinsLabel;
+    @FXML private Label debugLabel;
 
     @FXML private Button plantButton;
     @FXML private Button harvestButton;
+    @FXML private Button plantAllButton;
+    @FXML private Button harvestAllButton;
     @FXML private Button stealButton;
     @FXML private Button myFarmButton;
 
@@ -43,8 +46,6 @@ public class Controller {
     /** 当前界面正在显示的农场视图（owner 可以是自己或好友） */
     Game game;
 
-    private ToggleButton[][] cells;
-    private Timeline refreshTimeline;
     private String statusMessage = "Ready.";
     private int selectedRow = -1, selectedCol = -1;
 
@@ -55,6 +56,15 @@ public class Controller {
     /** 当前农场这一轮是否还有偷菜额度 */
     private boolean currentOwnerCanSteal = false;
 
+    /** 最近看过的农场：-Dfarm.cache.size=N（默认 8） */
+    final FarmCache farmCache = new FarmCache(Integer.getInteger("farm.cache.size", 8));
+    /** 每次切换农场加一；回来的响应不是最近一次切换的就不改画面 */
+    private int visitSeq;
+    private double lastSwitchMs, lastSyncMs;
+    private String lastSync = "-";
+    /** -Dfarm.debug=true 时在信息栏下显示缓存命中率和切换耗时 */
+    private static final boolean DEBUG_OVERLAY = Boolean.getBoolean("farm.debug");
+
     // ====== 长连接 ======
     private final LongLink longLink = new LongLink();
     private String session = "";
@@ -79,6 +89,11 @@ public class Controller {
         this.currentOwnerId = selfPlayer.getId();
         this.currentOwnerOnline = false;
         this.currentOwnerCanSteal = false;
+        if (debugLabel != null) {
+            debugLabel.setVisible(DEBUG_OVERLAY);
+            debugLabel.setManaged(DEBUG_OVERLAY);
+            updateDebugLabel();
+        }
 
         if (friendSearchField != null && friendAddButton != null) {
             friendAddButton.setDisable(true);
@@ -104,22 +119,61 @@ public class Controller {
         setPlayerInfoLabels();
         updateButtonsForOwnFarm();
         refreshBoard();
-        startRefreshTicker();
+    }
+
+    /** 同 parseCells，但统一成紧凑字符串（状态名的首字母正好是 E/G/R） */
+    static String compactCells(JsonNode cellsNode) {
+        if (cellsNode != null && cellsNode.isTextual()) return cellsNode.asText();
+        StringBuilder sb = new StringBuilder();
+        for (String c : parseCells(cellsNode)) sb.append(c.isEmpty() ? 'E' : c.charAt(0));
+        return sb.toString();
+    }
+
+    /**
+     * 服务器的格子状态：紧凑字符串（每格一个字符 E/G/R）；
+     * 也兼容旧服务器的状态名数组。
+     */
+    static String[] parseCells(JsonNode cellsNode) {
+        if (cellsNode == null) return new String[0];
+        if (cellsNode.isTextual()) {
+            String s = cellsNode.asText();
+            String[] arr = new String[s.length()];
+            for (int i = 0; i < arr.length; i++) {
+                arr[i] = switch (s.charAt(i)) {
+                    case 'G' -> "GROWING";
+                    case 'R' -> "RIPE";
+                    default -> "EMPTY";
+                };
+            }
+            return arr;
+        }
+        if (cellsNode.isArray()) {
+            String[] arr = new String[cellsNode.size()];
+            for (int i = 0; i < arr.length; i++) {
+                arr[i] = cellsNode.get(i).asText("EMPTY");
+            }
+            return arr;
+        }
+        return new String[0];
     }
 
     /** 登录后应用“自己农场”快照并刷新 UI */
-    public void applySnapshotFromServer(int rows, int cols, String[] cells, int coins) {
+    public void applySnapshotFromServer(int rows, int cols, String[] cells, int coins, long version) {
         if (game == null) return;
         game.setPlayer(selfPlayer);
         currentOwnerId = selfPlayer.getId();
+        FarmCache.Entry own = farmCache.obtain(selfPlayer.getId());
+        own.ownerName = selfPlayer.getName();
+        StringBuilder compact = new StringBuilder(cells.length);
+        for (String c : cells) compact.append(c.isEmpty() ? 'E' : c.charAt(0));
+        own.reset(rows, cols, compact.toString(), version);
         currentOwnerOnline = false;
         currentOwnerCanSteal = false;
 
         game.applySnapshot(rows, cols, cells, coins);
         selfPlayer.setCoins(coins);
 
-        selectedRow = -1;
-        selectedCol = -1;
+        select(-1, -1);
         setPlayerInfoLabels();
         updateButtonsForOwnFarm();
         refreshBoard();
@@ -163,11 +217,21 @@ public class Controller {
             updateCoins("Not connected.");
             return;
         }
-        longLink.call("VISIT_FARM", Map.of(
-                "playerId", selfPlayer.getId(),
-                "targetId", targetId,
-                "session", session
-        )).whenComplete((resp, err) -> Platform.runLater(() -> {
+        long t0 = System.nanoTime();
+        int seq = ++visitSeq;
+        FarmCache.Entry cached = farmCache.lookup(targetId);
+        boolean hit = cached != null && cached.cells != null;
+        // 缓存里有就先画出来，服务器回来再按增量修正
+        if (hit && targetId != currentOwnerId) showFarm(cached);
+        lastSwitchMs = hit ? (System.nanoTime() - t0) / 1e6 : -1;
+
+        Map<String, Object> args = new HashMap<>();
+        args.put("playerId", selfPlayer.getId());
+        args.put("targetId", targetId);
+        args.put("session", session);
+        if (hit && cached.version >= 0) args.put("knownVersion", cached.version);
+        boolean revalidate = args.containsKey("knownVersion");
+        longLink.call("VISIT_FARM", args).whenComplete((resp, err) -> Platform.runLater(() -> {
             if (err != null) {
                 updateCoins("Visit farm error: " + err.getMessage());
                 return;
@@ -177,52 +241,80 @@ public class Controller {
                 return;
             }
             int ownerId = resp.path("targetId").asInt(targetId);
-            String ownerName = resp.path("targetName").asText("Unknown");
-            int rows = resp.path("rows").asInt(4);
-            int cols = resp.path("cols").asInt(4);
-            JsonNode cellsNode = resp.path("cells");
-            String[] cellsArr;
-            if (cellsNode != null && cellsNode.isArray()) {
-                cellsArr = new String[cellsNode.size()];
-                for (int i = 0; i < cellsNode.size(); i++) {
-                    cellsArr[i] = cellsNode.get(i).asText("EMPTY");
+            FarmCache.Entry e = farmCache.obtain(ownerId);
+            // 没带 knownVersion（或旧服务器不回 sync）时都是整块快照
+            String sync = revalidate ? resp.path("sync").asText("FULL") : "FULL";
+            long version = resp.path("version").asLong(-1);
+            // 推送是批量 drain 的，可能先于这条响应应用：缓存已经更新就不要用旧内容覆盖
+            if (e.cells != null && version >= 0 && e.version > version) sync = "UNCHANGED";
+            switch (sync) {
+                case "UNCHANGED" -> {}
+                case "DELTA" -> {
+                    JsonNode deltaNode = resp.path("deltaCells");
+                    int[] idx = new int[deltaNode.size()];
+                    for (int i = 0; i < idx.length; i++) idx[i] = deltaNode.get(i).asInt(-1);
+                    e.apply(idx, resp.path("deltaStates").asText(""));
                 }
-            } else {
-                cellsArr = new String[0];
+                default -> e.reset(resp.path("rows").asInt(4), resp.path("cols").asInt(4), compactCells(resp.path("cells")), -1);
             }
-
-            boolean ownerOnline = resp.path("ownerOnline").asBoolean(false);
-            boolean canSteal = resp.path("canSteal").asBoolean(false);
-            currentOwnerOnline = ownerOnline;
-            currentOwnerCanSteal = canSteal;
-
-            Player owner = new Player();
-            owner.setId(ownerId);
-            owner.setName(ownerName);
-
-            game.setPlayer(owner);
-            currentOwnerId = ownerId;
-
+            e.version = e.cells != null ? Math.max(e.version, version) : -1;
+            e.ownerName = resp.path("targetName").asText("Unknown");
+            e.ownerOnline = resp.path("ownerOnline").asBoolean(false);
+            e.canSteal = resp.path("canSteal").asBoolean(false);
             if (ownerId == selfPlayer.getId()) {
                 int coins = resp.path("coins").asInt(game.getCoins());
-                game.applySnapshot(rows, cols, cellsArr, coins);
+                game.setCoinsFromServer(coins);
                 selfPlayer.setCoins(coins);
-                updateButtonsForOwnFarm();
-                updateCoins("Back to my farm.");
-            } else {
-                game.applyBoardSnapshot(rows, cols, cellsArr);
-                updateButtonsForVisitingFriend();
-                String onlineStr = ownerOnline ? "(online)" : "(offline)";
-                updateCoins("Viewing " + ownerName + "'s farm " + onlineStr);
             }
 
-            selectedRow = -1;
-            selectedCol = -1;
-            setPlayerInfoLabels();
-            refreshBoard();
+            lastSyncMs = (System.nanoTime() - t0) / 1e6;
+            lastSync = sync;
+            if (lastSwitchMs < 0) lastSwitchMs = lastSyncMs;
+            // 期间又点了别的农场：只更新缓存，不抢画面
+            if (seq == visitSeq) showFarm(e);
+            updateDebugLabel();
         }));
     }
 
+    /** 把缓存里的一块农场画到棋盘上 */
+    private void showFarm(FarmCache.Entry e) {
+        boolean self = e.ownerId == selfPlayer.getId();
+        Player owner = selfPlayer;
+        if (!self) {
+            owner = new Player();
+            owner.setId(e.ownerId);
+            owner.setName(e.ownerName);
+        }
+        if (e.ownerId != currentOwnerId) {
+            select(-1, -1);
+        }
+        game.setPlayer(owner);
+        currentOwnerId = e.ownerId;
+        currentOwnerOnline = e.ownerOnline;
+        currentOwnerCanSteal = e.canSteal;
+        game.applyCells(e.rows, e.cols, e.cellString());
+
+        if (self) {
+            updateButtonsForOwnFarm();
+            updateCoins("Back to my farm.");
+        } else {
+            updateButtonsForVisitingFriend();
+            String onlineStr = e.ownerOnline ? "(online)" : "(offline)";
+            updateCoins("Viewing " + e.ownerName + "'s farm " + onlineStr);
+        }
+        setPlayerInfoLabels();
+        refreshBoard();
+    }
+
+    /** 调试信息：缓存占用、切换命中率、最近一次切换到出图 / 服务器确认的耗时 */
+    private void updateDebugLabel() {
+        if (!DEBUG_OVERLAY || debugLabel == null) return;
+        long lookups = farmCache.lookups();
+        debugLabel.setText(String.format("cache %d/%d | hit %d/%d (%d%%) | switch %.1f ms | %s %.1f ms",
+                farmCache.size(), farmCache.capacity(), farmCache.hits(), lookups,
+                lookups == 0 ? 0 : farmCache.hits() * 100 / lookups, lastSwitchMs, lastSync, lastSyncMs));
+    }
+
     @FXML
     private void handleBackToMyFarm() {
         if (selfPlayer != null) {
@@ -232,52 +324,37 @@ public class Controller {
 
     // ====== 棋盘与渲染 ======
     private void createBoard() {
-        gameBoard.getChildren().clear();
-        cells = new ToggleButton[game.getRows()][game.getCols()];
-        for (int r = 0; r < game.getRows(); r++) {
-            for (int c = 0; c < game.getCols(); c++) {
-                ToggleButton cell = new ToggleButton();
-                cell.setPrefSize(60, 60);
-                cell.getStyleClass().add("plot-button");
-                final int rr = r, cc = c;
-                cell.setOnAction(e -> { selectedRow = rr; selectedCol = cc; refreshBoard(); });
-                gameBoard.add(cell, c, r);
-                cells[r][c] = cell;
-            }
-        }
+        gameBoard.bind(game, i -> select(i / game.getCols(), i % game.getCols()));
     }
 
+    /**
+     * 只重画上次渲染之后状态变过的格子（Game 记录脏格），外加信息栏。
+     * 没有定时刷新：所有变化都来自响应和推送，它们改完 Game 后调用这里。
+     */
     private void refreshBoard() {
-        if (game == null || cells == null) return;
-        for (int r = 0; r < game.getRows(); r++) {
-            for (int c = 0; c < game.getCols(); c++) {
-                ToggleButton cell = cells[r][c];
-                cell.setSelected(r == selectedRow && c == selectedCol);
-                updateCellState(cell, r, c);
-            }
-        }
+        if (game == null) return;
+        // 棋盘尺寸变了（换到另一种大小的农场），旧的选中位置没有意义
+        if (selectedRow >= game.getRows() || selectedCol >= game.getCols()) select(-1, -1);
+        gameBoard.render();
         updateCoins(statusMessage);
         setPlayerInfoLabels();
     }
 
-    private void updateCellState(ToggleButton cell, int row, int col) {
-        Game.PlotState s = game.getState(row, col);
-        cell.getStyleClass().removeAll("state-empty", "state-growing", "state-ripe");
-        cell.setText(switch (s) {
-            case EMPTY -> "Empty";
-            case GROWING -> "Growing";
-            case RIPE -> "Ripe";
-        });
-        switch (s) {
-            case EMPTY -> cell.getStyleClass().add("state-empty");
-            case GROWING -> cell.getStyleClass().add("state-growing");
-            case RIPE -> cell.getStyleClass().add("state-ripe");
-        }
+    /** 选中格子只重画新旧两格；(-1, -1) 表示取消选中 */
+    private void select(int row, int col) {
+        selectedRow = row;
+        selectedCol = col;
+        gameBoard.setSelected(row >= 0 && col >= 0 ? row * game.getCols() + col : -1);
     }
 
     private void updateCoins(String msg) {
         statusMessage = msg;
-        coinsLabel.setText("Coins: " + game.getCoins() + " | " + statusMessage);
+        setText(coinsLabel, "Coins: " + game.getCoins() + " | " + statusMessage);
+    }
+
+    /** 文本没变就不碰节点，免得触发重新布局 */
+    private static void setText(Labeled node, String text) {
+        if (!text.equals(node.getText())) node.setText(text);
     }
 
     private void setPlayerInfoLabels() {
@@ -285,11 +362,11 @@ public class Controller {
         Player owner = game.getPlayer();
         if (owner != null && owner.getId() != selfPlayer.getId()) {
             String onlineStr = currentOwnerOnline ? " (online)" : " (offline)";
-            playerNameLabel.setText("Viewing: " + owner.getName() + "'s Farm" + onlineStr);
-            playerIdLabel.setText("Me: " + selfPlayer.getName() + " (ID: " + selfPlayer.getId() + ")");
+            setText(playerNameLabel, "Viewing: " + owner.getName() + "'s Farm" + onlineStr);
+            setText(playerIdLabel, "Me: " + selfPlayer.getName() + " (ID: " + selfPlayer.getId() + ")");
         } else {
-            playerNameLabel.setText("Player: " + selfPlayer.getName());
-            playerIdLabel.setText("ID: " + selfPlayer.getId());
+            setText(playerNameLabel, "Player: " + selfPlayer.getName());
+            setText(playerIdLabel, "ID: " + selfPlayer.getId());
         }
     }
 
@@ -370,6 +447,45 @@ public class Controller {
         }));
     }
 
+    /** 把所有空地种上（金币不够就种到为止）；棋盘由随后的整块快照推送刷新 */
+    @FXML
+    private void handlePlantAll() {
+        batchOnOwnFarm("PLANT_ALL", "plant", n -> "Planted " + n + " plots!");
+    }
+
+    /** 收获所有成熟的格子 */
+    @FXML
+    private void handleHarvestAll() {
+        batchOnOwnFarm("HARVEST_ALL", "harvest", n -> "Harvested " + n + " plots!");
+    }
+
+    private void batchOnOwnFarm(String type, String verb, IntFunction<String> okMsg) {
+        if (!longLink.isConnected()) { updateCoins("Not connected."); return; }
+        if (game.getPlayer().getId() != selfPlayer.getId()) {
+            updateCoins("You can only " + verb + " in your own farm.");
+            return;
+        }
+
+        longLink.call(type, Map.of(
+                "playerId", selfPlayer.getId(),
+                "session", session
+        )).whenComplete((resp, err) -> Platform.runLater(() -> {
+            if (err != null) {
+                updateCoins("Network error: " + err.getMessage());
+                return;
+            }
+            if (!resp.path("ok").asBoolean(false)) {
+                updateCoins(resp.path("msg").asText(verb + " failed"));
+                return;
+            }
+            int coins = resp.path("coins").asInt(game.getCoins());
+            game.setCoinsFromServer(coins);
+            selfPlayer.setCoins(coins);
+            refreshBoard();
+            updateCoins(okMsg.apply(resp.path("count").asInt(0)));
+        }));
+    }
+
     @FXML
     private void handleSteal() {
         if (!ensureSelection()) { updateCoins("Select a plot first."); return; }
@@ -432,7 +548,7 @@ public class Controller {
                 currentOwnerCanSteal = resp.path("canSteal").asBoolean(false);
             }
 
-            // 地块变化由 PUSH_CELL_UPDATE 统一更新；这里不强行改
+            // 地块变化由 PUSH_FARM_DELTA 统一更新；这里不强行改
             updateButtonsForVisitingFriend();
             refreshBoard();
             updateCoins("Steal success!");
@@ -486,24 +602,17 @@ public class Controller {
     }
 
     public void shutdown() {
-        if (refreshTimeline != null) {
-            refreshTimeline.stop();
-        }
         longLink.close();
     }
 
     private boolean ensureSelection() { return selectedRow >= 0 && selectedCol >= 0; }
 
-    private void startRefreshTicker() {
-        refreshTimeline = new Timeline(new KeyFrame(Duration.seconds(1), e -> refreshBoard()));
-        refreshTimeline.setCycleCount(Timeline.INDEFINITE);
-        refreshTimeline.play();
-    }
-
     /** 当前在“自己家”时的按钮状态 */
     private void updateButtonsForOwnFarm() {
         plantButton.setDisable(false);
         harvestButton.setDisable(false);
+        if (plantAllButton != null)   plantAllButton.setDisable(false);
+        if (harvestAllButton != null) harvestAllButton.setDisable(false);
 
         if (stealButton != null)  stealButton.setDisable(true);
         if (myFarmButton != null) myFarmButton.setDisable(true);
@@ -513,6 +622,8 @@ public class Controller {
     private void updateButtonsForVisitingFriend() {
         plantButton.setDisable(true);
         harvestButton.setDisable(true);
+        if (plantAllButton != null)   plantAllButton.setDisable(true);
+        if (harvestAllButton != null) harvestAllButton.setDisable(true);
 
         if (myFarmButton != null) myFarmButton.setDisable(false);
 
@@ -537,12 +648,16 @@ public class Controller {
     private static class LongLink {
         private final ObjectMapper mapper = new ObjectMapper()
                 .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true);
+        /** 编码：-Dfarm.codec=json|binary（binary 见 BinaryCodec，连上后先发前导字节） */
+        private final boolean binary = "binary".equalsIgnoreCase(System.getProperty("farm.codec", "json"));
         private Socket socket;
-        private BufferedWriter out;
-        private BufferedReader in;
+        private OutputStream out;
+        private InputStream in;
         private Thread readerThread;
         private final Object writeLock = new Object();
         private final ConcurrentHashMap<String, CompletableFuture<JsonNode>> inflight = new ConcurrentHashMap<>();
+        /** 二进制模式下 requestId 是 int */
+        private final AtomicInteger nextRequestId = new AtomicInteger();
         private volatile boolean connected = false;
 
         boolean isConnected() { return connected; }
@@ -550,8 +665,12 @@ public class Controller {
         void connect(String host, int port) throws IOException {
             socket = new Socket(host, port);
             socket.setSoTimeout(0);
-            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedOutputStream(socket.getOutputStream());
+            in  = new BufferedInputStream(socket.getInputStream());
+            if (binary) {
+                out.write(BinaryCodec.preamble());
+                out.flush();
+            }
             connected = true;
 
             readerThread = new Thread(this::readLoop, "push-reader");
@@ -560,7 +679,7 @@ public class Controller {
         }
 
         CompletableFuture<JsonNode> call(String type, Map<String, ?> payload) {
-            String rid = UUID.randomUUID().toString();
+            String rid = binary ? String.valueOf(nextRequestId.incrementAndGet()) : UUID.randomUUID().toString();
             return call(type, payload, rid);
         }
 
@@ -570,23 +689,27 @@ public class Controller {
                 f.completeExceptionally(new IOException("not connected"));
                 return f;
             }
-            ObjectNode node = mapper.createObjectNode();
-            node.put("type", type);
-            node.put("requestId", requestId);
-            if (payload != null) {
-                payload.forEach((k, v) -> node.set(k, mapper.valueToTree(v)));
-            }
             CompletableFuture<JsonNode> fut = new CompletableFuture<>();
             inflight.put(requestId, fut);
 
             try {
-                String line = mapper.writeValueAsString(node);
+                byte[] bytes;
+                if (binary) {
+                    bytes = BinaryCodec.encodeRequest(type, Integer.parseInt(requestId), payload);
+                } else {
+                    ObjectNode node = mapper.createObjectNode();
+                    node.put("type", type);
+                    node.put("requestId", requestId);
+                    if (payload != null) {
+                        payload.forEach((k, v) -> node.set(k, mapper.valueToTree(v)));
+                    }
+                    bytes = (mapper.writeValueAsString(node) + "\n").getBytes(StandardCharsets.UTF_8);
+                }
                 synchronized (writeLock) {
-                    out.write(line);
-                    out.write("\n");
+                    out.write(bytes);
                     out.flush();
                 }
-            } catch (IOException e) {
+            } catch (IOException | IllegalArgumentException e) {
                 inflight.remove(requestId);
                 fut.completeExceptionally(e);
             }
@@ -595,22 +718,21 @@ public class Controller {
 
         private void readLoop() {
             try {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    JsonNode n = mapper.readTree(line);
-                    String typ = n.path("type").asText("");
-                    if ("RESP".equalsIgnoreCase(typ)) {
-                        String rid = n.path("requestId").asText(null);
-                        if (rid != null) {
-                            CompletableFuture<JsonNode> fut = inflight.remove(rid);
-                            if (fut != null) {
-                                fut.complete(n);
-                            }
-                        }
-                    } else if ("PUSH_CELL_UPDATE".equalsIgnoreCase(typ)) {
-                        PushHandlers.onCellUpdate(n);
-                    } else {
-                        System.out.println("[INFO] unknown push: " + line);
+                if (binary) {
+                    DataInputStream din = new DataInputStream(in);
+                    while (true) {
+                        int len;
+                        try { len = din.readInt(); } catch (EOFException e) { break; }
+                        if (len <= 0 || len > BinaryCodec.MAX_FRAME) throw new IOException("bad frame length " + len);
+                        byte[] frame = new byte[len];
+                        din.readFully(frame);
+                        dispatch(BinaryCodec.decodeServerFrame(frame));
+                    }
+                } else {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        dispatch(mapper.readTree(line));
                     }
                 }
             } catch (IOException e) {
@@ -623,6 +745,26 @@ public class Controller {
             }
         }
 
+        /** 两种编码解出来的都是同名字段的 JSON 树 */
+        private void dispatch(JsonNode n) {
+            String typ = n.path("type").asText("");
+            if ("RESP".equalsIgnoreCase(typ)) {
+                String rid = n.path("requestId").asText(null);
+                if (rid != null) {
+                    CompletableFuture<JsonNode> fut = inflight.remove(rid);
+                    if (fut != null) {
+                        fut.complete(n);
+                    }
+                }
+            } else if ("PUSH_FARM_DELTA".equalsIgnoreCase(typ)) {
+                PushHandlers.onFarmDelta(n);
+            } else if ("PUSH_FARM_SNAPSHOT".equalsIgnoreCase(typ)) {
+                PushHandlers.onFarmSnapshot(n);
+            } else {
+                System.out.println("[INFO] unknown push: " + n);
+            }
+        }
+
         void close() {
             connected = false;
             try { if (socket != null) socket.close(); } catch (Exception ignore) {}
@@ -630,32 +772,86 @@ public class Controller {
     }
 
     // ====== 推送 -> UI ======
+    /**
+     * push-reader 线程把推送解析成 {@link FarmUpdate} 放进无锁队列，FX 线程上最多排一次 drain：
+     * 一串成熟推送在同一次 drain 里全部应用，棋盘只刷新一次。
+     */
     private static class PushHandlers {
         private static Controller controller;
+        private static final Queue<FarmUpdate> pending = new ConcurrentLinkedQueue<>();
+        private static final AtomicBoolean drainScheduled = new AtomicBoolean();
 
         static void bind(Controller c) { controller = c; }
 
-        static void onCellUpdate(JsonNode n) {
-            if (controller == null || controller.game == null || controller.selfPlayer == null) return;
+        /** 一条推送解析后的结果：delta 或整块快照，只含基本类型，FX 线程上不再碰 JSON */
+        private record FarmUpdate(int ownerId, int coins, long since, long version,
+                                  int[] cells, String states, int rows, int cols, boolean snapshot) {}
+
+        /** 一块农场一段时间内变化的格子（cells 下标 + states 每格一个字符） */
+        static void onFarmDelta(JsonNode n) {
             int ownerId = n.path("playerId").asInt(-1);
-            int row  = n.path("row").asInt(-1);
-            int col  = n.path("col").asInt(-1);
-            String ps = n.path("plotState").asText(null);
-            int coins = n.path("coins").asInt(controller.game.getCoins());
-            if (row < 0 || col < 0 || ps == null) return;
-
-            Platform.runLater(() -> {
-                // 如果是我自己的农场更新：无论当前在看谁，都更新我的金币
-                if (ownerId == controller.selfPlayer.getId()) {
-                    controller.game.setCoinsFromServer(coins);
-                    controller.selfPlayer.setCoins(coins);
-                }
-                // 如果当前正在看的正是这个农场，才更新棋盘
-                if (ownerId == controller.currentOwnerId) {
-                    controller.game.setCellState(row, col, Game.PlotState.valueOf(ps));
+            JsonNode cellsNode = n.path("cells");
+            String states = n.path("states").asText("");
+            if (ownerId < 0 || !cellsNode.isArray() || cellsNode.size() != states.length()) return;
+            int[] idx = new int[cellsNode.size()];
+            for (int i = 0; i < idx.length; i++) idx[i] = cellsNode.get(i).asInt(-1);
+            enqueue(new FarmUpdate(ownerId, n.path("coins").asInt(-1), n.path("since").asLong(-1),
+                    n.path("version").asLong(-1), idx, states, 0, 0, false));
+        }
+
+        /** 服务器发送队列积压时，会把一串单格推送合并成一次整块快照 */
+        static void onFarmSnapshot(JsonNode n) {
+            int ownerId = n.path("playerId").asInt(-1);
+            JsonNode cellsNode = n.path("cells");
+            if (ownerId < 0 || !(cellsNode.isTextual() || cellsNode.isArray())) return;
+            enqueue(new FarmUpdate(ownerId, n.path("coins").asInt(-1), -1, n.path("version").asLong(-1),
+                    null, compactCells(cellsNode), n.path("rows").asInt(4), n.path("cols").asInt(4), true));
+        }
+
+        private static void enqueue(FarmUpdate u) {
+            pending.add(u);
+            if (drainScheduled.compareAndSet(false, true)) Platform.runLater(PushHandlers::drain);
+        }
+
+        /** FX 线程：先清标志再取队列，之后到的推送会自己再排一次 drain */
+        private static void drain() {
+            drainScheduled.set(false);
+            if (controller == null || controller.game == null || controller.selfPlayer == null) {
+                pending.clear();
+                return;
+            }
+            boolean any = false;
+            FarmUpdate u;
+            while ((u = pending.poll()) != null) {
+                apply(u);
+                any = true;
+            }
+            if (any) controller.refreshBoard();
+        }
+
+        private static void apply(FarmUpdate u) {
+            Controller c = controller;
+            // 如果是我自己的农场更新：无论当前在看谁，都更新我的金币
+            if (u.ownerId() == c.selfPlayer.getId() && u.coins() >= 0) {
+                c.game.setCoinsFromServer(u.coins());
+                c.selfPlayer.setCoins(u.coins());
+            }
+            FarmCache.Entry cached = c.farmCache.peek(u.ownerId());
+            if (u.snapshot()) {
+                if (cached != null) cached.reset(u.rows(), u.cols(), u.states(), u.version());
+                if (u.ownerId() == c.currentOwnerId) c.game.applyCells(u.rows(), u.cols(), u.states());
+                return;
+            }
+            if (cached != null) cached.applyPush(u.cells(), u.states(), u.since(), u.version());
+            // 如果当前正在看的正是这个农场，才更新棋盘
+            if (u.ownerId() == c.currentOwnerId) {
+                int cols = c.game.getCols(), total = c.game.getRows() * cols;
+                for (int i = 0; i < u.cells().length; i++) {
+                    int idx = u.cells()[i];
+                    if (idx < 0 || idx >= total) continue;
+                    c.game.setCellState(idx / cols, idx % cols, Game.fromChar(u.states().charAt(i)));
                 }
-                controller.refreshBoard();
-            });
+            }
         }
     }
 
@@ -0,0 +1,89 @@
+package org.example.demo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 客户端最近看过的农场（按农场主 id，LRU 有界）：切换农场时先把缓存画出来，
+ * 再带上版本号向服务器要增量（VISIT_FARM knownVersion）。
+ * 正在看的农场和自己的农场会收到推送，缓存随推送更新；其余条目只在再次访问时校验。
+ * 只在 FX 线程访问，不加锁。
+ */
+class FarmCache {
+
+    static final class Entry {
+        final int ownerId;
+        String ownerName;
+        boolean ownerOnline, canSteal;
+        int rows, cols;
+        /** 每格一个字符（E/G/R），同服务器紧凑格式 */
+        char[] cells;
+        /** 对应的服务器农场版本；-1 表示中间漏过推送，下次访问要整块快照 */
+        long version = -1;
+
+        Entry(int ownerId) { this.ownerId = ownerId; }
+
+        void reset(int rows, int cols, String cells, long version) {
+            this.rows = rows;
+            this.cols = cols;
+            this.cells = new char[rows * cols];
+            for (int i = 0; i < this.cells.length; i++) this.cells[i] = i < cells.length() ? cells.charAt(i) : 'E';
+            this.version = version;
+        }
+
+        /** 应用一段增量；越界的下标忽略 */
+        void apply(int[] idx, String states) {
+            if (cells == null) return;
+            for (int i = 0; i < idx.length && i < states.length(); i++) {
+                if (idx[i] >= 0 && idx[i] < cells.length) cells[idx[i]] = states.charAt(i);
+            }
+        }
+
+        /** 推送：since 之前的版本都已经在缓存里时才能接上，否则版本作废 */
+        void applyPush(int[] idx, String states, long since, long pushVersion) {
+            apply(idx, states);
+            version = version >= 0 && since >= 0 && version >= since ? Math.max(version, pushVersion) : -1;
+        }
+
+        String cellString() { return cells == null ? "" : new String(cells); }
+    }
+
+    private final int capacity;
+    private final Map<Integer, Entry> entries;
+    private long hits, misses;
+
+    FarmCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > FarmCache.this.capacity;
+            }
+        };
+    }
+
+    /** 切换农场时查缓存：计入命中率 */
+    Entry lookup(int ownerId) {
+        Entry e = entries.get(ownerId);
+        if (e != null && e.cells != null) hits++; else misses++;
+        return e;
+    }
+
+    /** 推送等内部更新用：不计命中率（收到推送的农场本来就是最近在看的，顺带刷新 LRU 顺序无妨） */
+    Entry peek(int ownerId) {
+        return entries.get(ownerId);
+    }
+
+    /** 取条目，没有就新建（可能挤掉最久未用的一块） */
+    Entry obtain(int ownerId) {
+        return entries.computeIfAbsent(ownerId, Entry::new);
+    }
+
+    int size() { return entries.size(); }
+
+    int capacity() { return capacity; }
+
+    long hits() { return hits; }
+
+    long lookups() { return hits + misses; }
+}
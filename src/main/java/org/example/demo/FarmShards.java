@@ -0,0 +1,76 @@
+package org.example.demo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 农场的单写者邮箱：N 个分片各一条线程，农场按农场主 id 落到固定分片，
+ * 一块农场的所有修改都在它的分片线程上按提交顺序执行，不再需要农场锁。
+ * 分片线程上的任务不能再同步等待别的分片（call / quiesce），否则两个分片互等会卡死。
+ */
+class FarmShards {
+
+    private final ExecutorService[] shards;
+    /** 各分片的线程：call 在本分片线程上直接执行，不排队 */
+    private final Thread[] threads;
+
+    FarmShards(int n) {
+        n = Math.max(1, n);
+        shards = new ExecutorService[n];
+        threads = new Thread[n];
+        for (int k = 0; k < n; k++) {
+            int idx = k;
+            shards[k] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "farm-shard-" + idx);
+                t.setDaemon(true);
+                threads[idx] = t;
+                return t;
+            });
+        }
+    }
+
+    int size() { return shards.length; }
+
+    /** 玩家 id 是连续分配的，取模就是均匀的轮转 */
+    private int shardOf(int ownerId) {
+        return Math.floorMod(ownerId, shards.length);
+    }
+
+    /** 投递到农场所在分片，不等结果 */
+    void execute(int ownerId, Runnable task) {
+        shards[shardOf(ownerId)].execute(() -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /** 在农场所在分片上执行并等结果；已经在该分片线程上时直接执行 */
+    <T> T call(int ownerId, Supplier<T> task) {
+        int k = shardOf(ownerId);
+        if (Thread.currentThread() == threads[k]) return task.get();
+        try {
+            return CompletableFuture.supplyAsync(task, shards[k]).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    /** 等每个分片把此刻之前投递的任务都执行完（各投一个空任务排在队尾） */
+    void quiesce(long timeoutMs) {
+        CompletableFuture<?>[] marks = new CompletableFuture<?>[shards.length];
+        for (int k = 0; k < shards.length; k++) marks[k] = CompletableFuture.runAsync(() -> {}, shards[k]);
+        try {
+            CompletableFuture.allOf(marks).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.err.println("[SHARD] quiesce: " + e);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package org.example.demo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 农场二进制快照（farms.bin），加载时用 MappedByteBuffer 直接按页读取。
+ *
+ * 文件头（16 字节）：int magic "FARM"，short version，short 保留，int farmCount，short rows，short cols
+ * v2（当前写出的格式）每块农场自带尺寸，头里的 rows / cols 为 0：
+ *          int playerId，short rows，short cols，byte[ceil(rows*cols/4)] 2-bit 格子状态，long[rows*cols] ripeAt
+ * v1 所有农场同一尺寸（取文件头）：int playerId，byte[ceil(rows*cols/4)]，long[rows*cols]
+ * 2-bit 状态：第 i 格在 i/4 字节的 (i%4)*2 位；编码与 {@link Server.PlotState#ordinal()} 一致：0=EMPTY，1=GROWING，2=RIPE。
+ * ripeAt 为 0 表示无。
+ */
+class FarmSnapshot {
+
+    static final int MAGIC = 0x4641524D; // "FARM"
+    static final short VERSION = 2;
+    static final int HEADER_BYTES = 16;
+
+    /** 单次映射的最大字节数（MappedByteBuffer 最多 2GB，按记录对齐分段映射） */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    /** 逐块农场回调；packed / ripeAt 数组会被复用（长度可能大于本块格子数），不要保存引用 */
+    interface FarmConsumer {
+        void accept(int playerId, int rows, int cols, byte[] packed, long[] ripeAt);
+    }
+
+    static int packedBytes(int cells) { return (cells + 3) / 4; }
+
+    static int recordBytes(int rows, int cols) {
+        int cells = rows * cols;
+        return 4 + packedBytes(cells) + 8 * cells;
+    }
+
+    static int stateAt(byte[] packed, int i) {
+        return (packed[i >> 2] >>> ((i & 3) << 1)) & 3;
+    }
+
+    static void setState(byte[] packed, int i, int state) {
+        int shift = (i & 3) << 1;
+        packed[i >> 2] = (byte) ((packed[i >> 2] & ~(3 << shift)) | ((state & 3) << shift));
+    }
+
+    // ===== 读 =====
+
+    /** 映射整个文件并逐条回调，返回农场数 */
+    static int read(Path file, FarmConsumer consumer) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_BYTES) throw new IOException("farms.bin too short");
+            MappedByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (head.getInt() != MAGIC) throw new IOException("farms.bin: bad magic");
+            short version = head.getShort();
+            if (version != 1 && version != VERSION) throw new IOException("farms.bin: unsupported version " + version);
+            head.getShort();
+            int count = head.getInt();
+            int fileRows = head.getShort();
+            int fileCols = head.getShort();
+
+            Window win = new Window(ch, size);
+            byte[] packed = new byte[0];
+            long[] ripeAt = new long[0];
+            long pos = HEADER_BYTES;
+            for (int done = 0; done < count; done++) {
+                int rows = fileRows, cols = fileCols, extra = 0;
+                if (version >= 2) {
+                    ByteBuffer h = win.at(pos, 8);
+                    h.getInt();
+                    rows = h.getShort();
+                    cols = h.getShort();
+                    extra = 4;
+                }
+                int cells = rows * cols;
+                if (rows <= 0 || cols <= 0) throw new IOException("farms.bin: bad farm size " + rows + "x" + cols);
+                if (packed.length < packedBytes(cells)) packed = new byte[packedBytes(cells)];
+                if (ripeAt.length < cells) ripeAt = new long[cells];
+
+                int rec = recordBytes(rows, cols) + extra;
+                ByteBuffer buf = win.at(pos, rec);
+                int playerId = buf.getInt();
+                buf.position(buf.position() + extra);
+                buf.get(packed, 0, packedBytes(cells));
+                buf.asLongBuffer().get(ripeAt, 0, cells);
+                consumer.accept(playerId, rows, cols, packed, ripeAt);
+                pos += rec;
+            }
+            return count;
+        }
+    }
+
+    /** 按需重映射的只读窗口：记录不在当前映射范围内时从该记录起重新映射 */
+    private static final class Window {
+        private final FileChannel ch;
+        private final long size;
+        private MappedByteBuffer buf;
+        private long start, end;
+
+        Window(FileChannel ch, long size) { this.ch = ch; this.size = size; }
+
+        /** 返回 position 指向 pos 的缓冲区，保证其后至少 len 字节可读 */
+        ByteBuffer at(long pos, int len) throws IOException {
+            if (pos + len > size) throw new IOException("farms.bin truncated");
+            if (buf == null || pos < start || pos + len > end) {
+                start = pos;
+                end = Math.min(size, pos + Math.max(MAP_WINDOW, len));
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            }
+            return buf.duplicate().position((int) (pos - start));
+        }
+    }
+
+    // ===== 写 =====
+
+    /** 顺序写入（v2，每块农场自带尺寸）；关闭时回填农场数并 fsync */
+    static final class Writer implements Closeable {
+        private final FileChannel ch;
+        private ByteBuffer buf;
+        private int count;
+
+        Writer(Path file) throws IOException {
+            this.ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.buf = ByteBuffer.allocate(64 * 1024);
+            buf.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(0)
+                    .putShort((short) 0).putShort((short) 0);
+        }
+
+        void add(int playerId, int rows, int cols, byte[] packed, long[] ripeAt) throws IOException {
+            int rec = recordBytes(rows, cols) + 4;
+            if (buf.remaining() < rec) {
+                drain();
+                if (buf.capacity() < rec) buf = ByteBuffer.allocate(rec);
+            }
+            buf.putInt(playerId).putShort((short) rows).putShort((short) cols);
+            buf.put(packed, 0, packedBytes(rows * cols));
+            for (int i = 0; i < rows * cols; i++) buf.putLong(ripeAt[i]);
+            count++;
+        }
+
+        private void drain() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+                ch.write(ByteBuffer.allocate(4).putInt(0, count), 8);
+                ch.force(true);
+            } finally {
+                ch.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.example.demo;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * 离线转换工具：farms.json -> farms.bin（{@link FarmSnapshot} v2 格式），服务器停着的时候运行。
+ * 用法：org.example.demo.FarmSnapshotTool [farms.json，默认 data/farms.json] [farms.bin，默认 data/farms.bin]
+ */
+public class FarmSnapshotTool {
+
+    private FarmSnapshotTool() {}
+
+    public static void main(String[] args) throws Exception {
+        Path in  = Paths.get(args.length > 0 ? args[0] : "data/farms.json");
+        Path out = Paths.get(args.length > 1 ? args[1] : "data/farms.bin");
+
+        List<Server.PersistFarm> list = new ObjectMapper()
+                .readValue(Files.readAllBytes(in), new TypeReference<List<Server.PersistFarm>>() {});
+        try (FarmSnapshot.Writer w = new FarmSnapshot.Writer(out)) {
+            for (Server.PersistFarm pf : list) {
+                int rows = pf.rows > 0 ? pf.rows : 4, cols = pf.cols > 0 ? pf.cols : 4, cells = rows * cols;
+                byte[] packed = new byte[FarmSnapshot.packedBytes(cells)];
+                long[] ripeAt = new long[cells];
+                for (int i = 0; i < cells && pf.cells != null && i < pf.cells.size(); i++) {
+                    Server.PersistCell pc = pf.cells.get(i);
+                    if (pc == null || pc.state == null) continue;
+                    FarmSnapshot.setState(packed, i, Server.PlotState.valueOf(pc.state).ordinal());
+                    ripeAt[i] = pc.ripeAt == null ? 0 : pc.ripeAt;
+                }
+                w.add(pf.playerId, rows, cols, packed, ripeAt);
+            }
+        }
+        System.out.println("converted farms=" + list.size() + " " + in + " -> " + out
+                + " (" + Files.size(in) + " -> " + Files.size(out) + " bytes)");
+    }
+}
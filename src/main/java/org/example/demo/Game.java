@@ -1,18 +1,37 @@
 package org.example.demo;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
 /** 纯视图缓存：不再本地推进生长，一切以服务端为准。 */
 public class Game {
 
     public enum PlotState {EMPTY, GROWING, RIPE}
 
-    private static final int ROWS = 4;
-    private static final int COLS = 4;
+    /** 服务器紧凑格式里的单个字符（E/G/R） */
+    public static PlotState fromChar(char ch) {
+        return switch (ch) {
+            case 'G' -> PlotState.GROWING;
+            case 'R' -> PlotState.RIPE;
+            default -> PlotState.EMPTY;
+        };
+    }
+
+    /** 服务器允许的最大边长（同 Server.MAX_FARM_SIDE） */
+    public static final int MAX_SIDE = 64;
 
     /** 当前界面正在显示的农场主人（可以是自己，也可以是好友） */
     private Player owner;
 
-    /** 棋盘状态（始终是“当前 owner”农场的格子） */
-    private final PlotState[][] board = new PlotState[ROWS][COLS];
+    /** 棋盘尺寸跟随服务器快照；默认 4x4 */
+    private int rows = 4, cols = 4;
+
+    /** 棋盘状态（始终是“当前 owner”农场的格子），行优先，下标 r * cols + c */
+    private PlotState[] board = newBoard(rows * cols);
+
+    /** 上次渲染之后状态真正变过的格子（行优先下标），由 Controller 取走 */
+    private final BitSet dirty = new BitSet();
 
     /** 自己的金币（coins 只表示本人金币，不表示当前 owner 的金币） */
     private int coins;
@@ -20,11 +39,6 @@ public class Game {
     public Game(Player selfPlayer) {
         this.owner = selfPlayer;
         this.coins = selfPlayer.getCoins();
-        for (int r=0;r<ROWS;r++) {
-            for (int c=0;c<COLS;c++) {
-                board[r][c] = PlotState.EMPTY;
-            }
-        }
     }
 
     public Player getPlayer() {
@@ -36,17 +50,57 @@ public class Game {
         this.owner = owner;
     }
 
-    public int getRows() { return ROWS; }
-    public int getCols() { return COLS; }
+    public int getRows() { return rows; }
+    public int getCols() { return cols; }
 
     public PlotState getState(int row, int col) {
         if (!inRange(row, col)) return PlotState.EMPTY;
-        return board[row][col];
+        return board[row * cols + col];
+    }
+
+    /** 行优先下标取状态（渲染用） */
+    public PlotState getState(int index) {
+        return index >= 0 && index < board.length ? board[index] : PlotState.EMPTY;
     }
 
     public void setCellState(int row, int col, PlotState state) {
         if (!inRange(row, col)) return;
-        board[row][col] = state;
+        put(row * cols + col, state);
+    }
+
+    /** 写一格；状态真的变了才记为脏格 */
+    private void put(int i, PlotState state) {
+        if (board[i] == state) return;
+        board[i] = state;
+        dirty.set(i);
+    }
+
+    /** 依次交出脏格下标并清空 */
+    public void drainDirty(IntConsumer sink) {
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) sink.accept(i);
+        dirty.clear();
+    }
+
+    /** 棋盘节点重建后全部重画一遍 */
+    public void markAllDirty() {
+        dirty.set(0, board.length);
+    }
+
+    /** 尺寸变了就换一块全空的棋盘（全部记为脏格）；非法尺寸忽略 */
+    private void resize(int rows, int cols) {
+        if (rows == this.rows && cols == this.cols) return;
+        if (rows < 1 || cols < 1 || rows > MAX_SIDE || cols > MAX_SIDE) return;
+        this.rows = rows;
+        this.cols = cols;
+        this.board = newBoard(rows * cols);
+        dirty.clear();
+        markAllDirty();
+    }
+
+    private static PlotState[] newBoard(int n) {
+        PlotState[] b = new PlotState[n];
+        Arrays.fill(b, PlotState.EMPTY);
+        return b;
     }
 
     /** 自己的金币（UI 始终显示自己的金币） */
@@ -62,17 +116,7 @@ public class Game {
      * 注意：这里 coins 是“本人金币”，即使 owner 也是自己。
      */
     public void applySnapshot(int rows, int cols, String[] cells, int coins) {
-        // 假设 rows/cols 恒为 4x4
-        int idx = 0;
-        for (int r=0;r<ROWS;r++){
-            for (int c=0;c<COLS;c++){
-                if (idx < cells.length) {
-                    board[r][c] = PlotState.valueOf(cells[idx++]);
-                } else {
-                    board[r][c] = PlotState.EMPTY;
-                }
-            }
-        }
+        applyBoardSnapshot(rows, cols, cells);
         setCoinsFromServer(coins);
     }
 
@@ -80,15 +124,17 @@ public class Game {
      * 访问好友农场时使用：只更新棋盘，不改动金币（金币只表示自己）。
      */
     public void applyBoardSnapshot(int rows, int cols, String[] cells) {
-        int idx = 0;
-        for (int r=0;r<ROWS;r++){
-            for (int c=0;c<COLS;c++){
-                if (idx < cells.length) {
-                    board[r][c] = PlotState.valueOf(cells[idx++]);
-                } else {
-                    board[r][c] = PlotState.EMPTY;
-                }
-            }
+        resize(rows, cols);
+        for (int i = 0; i < board.length; i++) {
+            put(i, i < cells.length ? PlotState.valueOf(cells[i]) : PlotState.EMPTY);
+        }
+    }
+
+    /** 用紧凑格式（每格一个字符）覆盖棋盘，不动金币 */
+    public void applyCells(int rows, int cols, String cells) {
+        resize(rows, cols);
+        for (int i = 0; i < board.length; i++) {
+            put(i, i < cells.length() ? fromChar(cells.charAt(i)) : PlotState.EMPTY);
         }
     }
 
@@ -97,6 +143,6 @@ public class Game {
     }
 
     private boolean inRange(int r, int c) {
-        return r >= 0 && r < ROWS && c >= 0 && c < COLS;
+        return r >= 0 && r < rows && c >= 0 && c < cols;
     }
 }
@@ -0,0 +1,59 @@
+package org.example.demo;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * 按 key 串行、不同 key 并行的执行器：同一 key 的任务按提交顺序逐个执行，
+ * 线程由共享的 Executor 提供；没有待执行任务的 key 不占内存。
+ */
+class KeyedExecutor {
+
+    /** 一个 key 连续执行多少个任务后把线程让出来，避免热点 key 长期霸占一个工作线程 */
+    private static final int BATCH = 32;
+
+    private final Executor workers;
+    /** key -> 该 key 后续排队的任务；存在即表示该 key 有任务正在执行（队列只在 compute 内访问） */
+    private final Map<Long, ArrayDeque<Runnable>> lanes = new ConcurrentHashMap<>();
+
+    KeyedExecutor(Executor workers) {
+        this.workers = workers;
+    }
+
+    void execute(long key, Runnable task) {
+        boolean[] idle = new boolean[1];
+        lanes.compute(key, (k, q) -> {
+            if (q == null) {
+                idle[0] = true;
+                return new ArrayDeque<>(4);
+            }
+            q.add(task);
+            return q;
+        });
+        if (idle[0]) workers.execute(() -> drain(key, task));
+    }
+
+    private void drain(long key, Runnable first) {
+        Runnable task = first;
+        for (int n = 0; task != null; n++) {
+            if (n == BATCH) {
+                Runnable next = task;
+                workers.execute(() -> drain(key, next));
+                return;
+            }
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            Runnable[] next = new Runnable[1];
+            lanes.compute(key, (k, q) -> {
+                next[0] = q.poll();
+                return next[0] == null ? null : q;
+            });
+            task = next[0];
+        }
+    }
+}
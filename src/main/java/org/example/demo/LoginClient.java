@@ -49,7 +49,8 @@ public class LoginClient {
                 if (line == null) throw new EOFException("server closed");
 
                 Resp resp = mapper.readValue(line, Resp.class);
-                return new LoginResult(resp.ok, resp.msg, resp.playerId, resp.coins, resp.session, resp.playerName);
+                return new LoginResult(resp.ok, resp.msg, resp.playerId, resp.coins, resp.session, resp.playerName,
+                        resp.rows, resp.cols, resp.cells);
             }
         }
     }
@@ -73,8 +74,12 @@ public class LoginClient {
         public Integer coins;
         public String session;
         public String playerName;
+        public Integer rows, cols;
+        public String cells;         // 每格一个字符：E/G/R
         public Resp() {}
     }
 
-    public record LoginResult(boolean ok, String msg, Integer playerId, Integer coins, String session, String playerName) {}
+    /** 失败或 SIGNUP 时只有 ok / msg，其余为 null（服务器不输出 null 字段） */
+    public record LoginResult(boolean ok, String msg, Integer playerId, Integer coins, String session, String playerName,
+                              Integer rows, Integer cols, String cells) {}
 }
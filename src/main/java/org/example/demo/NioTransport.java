@@ -0,0 +1,303 @@
+package org.example.demo;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于 Selector 的长连传输：少量固定的 IO 线程承载所有连接。
+ * 协议与阻塞模式完全一致（一行一个 JSON），业务处理仍交给 {@link Server#handleLine}。
+ */
+class NioTransport {
+
+    /** 单行最大长度，超过视为异常客户端直接断开 */
+    private static final int MAX_LINE = 1 << 20;
+
+    /** 连接的读状态：等首字节协商 / 等二进制版本号 / JSON 行 / 二进制帧 */
+    private static final int NEGOTIATE = 0, VERSION = 1, TEXT = 2, FRAMES = 3;
+
+    private final Server server;
+    private final int port;
+    private final IoLoop[] loops;
+
+    NioTransport(Server server, int port, int loopCount) {
+        this.server = server;
+        this.port = port;
+        this.loops = new IoLoop[Math.max(1, loopCount)];
+    }
+
+    /** 当前线程负责 accept，连接轮询分配给各个 IO 循环；不会返回 */
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(port));
+            System.out.println("Server listening on " + port + " (io=nio, loops=" + loops.length + ")");
+            int next = 0;
+            while (true) {
+                SocketChannel ch = ssc.accept();
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                loops[next].register(ch);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    // ===== IO 循环 =====
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingAccept = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConn> pendingWrite = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuf = ByteBuffer.allocateDirect(64 * 1024);
+
+        IoLoop(Selector selector) { this.selector = selector; }
+
+        void register(SocketChannel ch) {
+            pendingAccept.add(ch);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioConn c) {
+            pendingWrite.add(c);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    drainAccepts();
+                    drainWrites();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConn c = (NioConn) key.attachment();
+                        if (!key.isValid()) { c.closeNow(); continue; }
+                        if (key.isReadable()) onReadable(c);
+                        if (key.isValid() && key.isWritable()) flush(c);
+                    }
+                } catch (Exception e) {
+                    // 单个连接的异常已在内部处理；这里只兜底防止 IO 线程退出
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void drainAccepts() {
+            SocketChannel ch;
+            while ((ch = pendingAccept.poll()) != null) {
+                try {
+                    NioConn c = new NioConn(this, ch);
+                    c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                } catch (IOException e) {
+                    try { ch.close(); } catch (IOException ignore) {}
+                }
+            }
+        }
+
+        private void drainWrites() {
+            NioConn c;
+            while ((c = pendingWrite.poll()) != null) {
+                flush(c);
+            }
+        }
+
+        private void onReadable(NioConn c) {
+            readBuf.clear();
+            int n;
+            try {
+                n = c.ch.read(readBuf);
+            } catch (IOException e) {
+                c.closeNow();
+                return;
+            }
+            if (n < 0) {
+                System.out.println("[INFO] client closed");
+                c.closeNow();
+                return;
+            }
+            readBuf.flip();
+            while (readBuf.hasRemaining()) {
+                byte b = readBuf.get();
+                if (c.stage == NEGOTIATE) {
+                    // 第一个字节决定编码：0xFA 前导为二进制帧，否则是 JSON 行
+                    if ((b & 0xFF) == BinaryCodec.MAGIC) { c.stage = VERSION; continue; }
+                    c.stage = TEXT;
+                } else if (c.stage == VERSION) {
+                    if (b != BinaryCodec.VERSION) {
+                        System.out.println("[INFO] unsupported binary codec version, closing");
+                        c.closeNow();
+                        return;
+                    }
+                    c.binary = true;
+                    c.stage = FRAMES;
+                    continue;
+                }
+
+                if (c.stage == FRAMES) {
+                    if (!c.append(b)) {
+                        System.out.println("[INFO] frame too long, closing");
+                        c.closeNow();
+                        return;
+                    }
+                    try {
+                        byte[] frame = c.takeFrame();
+                        if (frame == null) continue;
+                        server.handleFrame(c, frame);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        c.closeNow();
+                        return;
+                    }
+                } else if (b == '\n') {
+                    String line = c.takeLine();
+                    try {
+                        server.handleLine(c, line);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        c.closeNow();
+                        return;
+                    }
+                } else if (!c.append(b)) {
+                    System.out.println("[INFO] line too long, closing");
+                    c.closeNow();
+                    return;
+                }
+            }
+        }
+
+        /** 尽量把写队列写空；写不完则挂上 OP_WRITE 等下一轮 */
+        private void flush(NioConn c) {
+            if (!c.ch.isOpen()) return;
+            if (c.abortRequested) { c.closeNow(); return; }
+            try {
+                while (true) {
+                    while (c.current != null || c.nextBuffer()) {
+                        c.ch.write(c.current);
+                        if (c.current.hasRemaining()) {
+                            c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            return;
+                        }
+                        c.current = null;
+                    }
+                    c.key.interestOps(SelectionKey.OP_READ);
+                    c.writeScheduled.set(false);
+                    // 复查：防止生产者在我们清标志前入队却没触发调度
+                    if (c.outbox.isEmpty() || !c.writeScheduled.compareAndSet(false, true)) break;
+                }
+                if (c.abortRequested || (c.closeRequested && c.current == null && c.outbox.isEmpty())) c.closeNow();
+            } catch (IOException | CancelledKeyException e) {
+                c.closeNow();
+            }
+        }
+    }
+
+    // ===== 连接 =====
+    private final class NioConn extends Server.ClientConn {
+        final IoLoop loop;
+        final SocketChannel ch;
+        SelectionKey key;
+
+        /** 正在写的一行（可能只写了一部分）；仅 IO 线程访问 */
+        ByteBuffer current;
+        final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        volatile boolean closeRequested;
+        volatile boolean abortRequested;
+
+        /** 读状态（仅 IO 线程访问） */
+        int stage = NEGOTIATE;
+        /** 未遇到 '\n' 之前累积的半行，或二进制模式下未收全的一帧（含 4 字节长度；仅 IO 线程访问） */
+        private byte[] lineBuf = new byte[256];
+        private int lineLen;
+
+        NioConn(IoLoop loop, SocketChannel ch) {
+            super(server);
+            this.loop = loop;
+            this.ch = ch;
+        }
+
+        boolean append(byte b) {
+            if (lineLen == lineBuf.length) {
+                if (lineBuf.length >= MAX_LINE) return false;
+                lineBuf = Arrays.copyOf(lineBuf, lineBuf.length * 2);
+            }
+            lineBuf[lineLen++] = b;
+            return true;
+        }
+
+        /** 一帧收全时返回 payload（不含长度前缀）并清空缓冲；否则返回 null */
+        byte[] takeFrame() throws IOException {
+            if (lineLen < 4) return null;
+            int len = ((lineBuf[0] & 0xFF) << 24) | ((lineBuf[1] & 0xFF) << 16) | ((lineBuf[2] & 0xFF) << 8) | (lineBuf[3] & 0xFF);
+            if (len <= 0 || len > BinaryCodec.MAX_FRAME) throw new IOException("bad frame length " + len);
+            if (lineLen < 4 + len) return null;
+            lineLen = 0;
+            return Arrays.copyOfRange(lineBuf, 4, 4 + len);
+        }
+
+        String takeLine() {
+            int len = lineLen;
+            if (len > 0 && lineBuf[len - 1] == '\r') len--;
+            String line = new String(lineBuf, 0, len, StandardCharsets.UTF_8);
+            lineLen = 0;
+            return line;
+        }
+
+        /** 取下一行放进 current；每个连接自己的 position/limit，底层数组与其他接收者共享 */
+        boolean nextBuffer() {
+            byte[] line = outbox.poll();
+            if (line == null) return false;
+            current = ByteBuffer.wrap(line);
+            return true;
+        }
+
+        @Override
+        void requestWrite() {
+            if (closed.get()) return;
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.requestWrite(this);
+            }
+        }
+
+        @Override
+        void close() {
+            closeRequested = true;
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.requestWrite(this);
+            }
+        }
+
+        /** 可在任意线程调用：交给 IO 线程关闭 */
+        @Override
+        void abort() {
+            abortRequested = true;
+            // 不看 writeScheduled：连接可能正卡在等 OP_WRITE，必须让 IO 线程立刻处理
+            loop.requestWrite(this);
+        }
+
+        void closeNow() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try { ch.close(); } catch (IOException ignore) {}
+            outbox.clear();
+            server.onConnClosed(this);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package org.example.demo;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/**
+ * 每条连接一个有界发送队列：调用方（农场分片线程、执行道 worker、读线程、WAL 落盘回调）只入队，从不碰 socket，不会被慢客户端卡住；
+ * 由连接自己的写线程 / IO 循环出队发送。
+ *
+ * 队列里只有格子推送可以被丢弃或合并，响应（RESP / INFO）永远保留；
+ * 推送超过 capacity 时按溢出策略处理，任何策略下总长度超过 2 * capacity 都直接断开。
+ */
+class Outbox {
+
+    /** 溢出策略：-Dfarm.out.policy=snapshot|drop|disconnect */
+    enum Policy {
+        /** 该连接上所有排队的格子推送合并成“整块农场快照”标记，写线程发送时才生成快照 */
+        SNAPSHOT,
+        /** 丢掉同一格子上被覆盖的旧推送；没有可覆盖的就丢最老的推送 */
+        DROP,
+        /** 慢客户端直接断开 */
+        DISCONNECT;
+
+        static Policy parse(String s) {
+            try {
+                return valueOf(s.trim().toUpperCase(java.util.Locale.ROOT));
+            } catch (Exception e) {
+                return SNAPSHOT;
+            }
+        }
+    }
+
+    /** offerPush 的 cell：一条推送涉及多个格子（PUSH_FARM_DELTA），DROP 时不按格子去重 */
+    static final int MULTI_CELL = Integer.MAX_VALUE;
+
+    /** cell = -1 表示不是格子推送；snapshot 为 true 时 line 为空，写线程按 owner 现生成 */
+    private record Entry(byte[] line, int owner, int cell, boolean snapshot) {}
+
+    private final int capacity;
+    private final Policy policy;
+    /** ownerId -> 该农场快照的一行（含 '\n'），null 表示农场不存在；在写线程上调用 */
+    private final IntFunction<byte[]> snapshots;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    /** 队列里已有快照标记的农场：之后到达的同农场推送直接被快照吸收 */
+    private final Set<Integer> pendingSnapshots = new HashSet<>();
+    private int pushes;
+    private long bytes;
+
+    // 统计（仅在 lock 内修改）
+    private int peakDepth;
+    private long sent, dropped, collapsed, snapshotsSent;
+    /** 上次 reportDue 返回 true 时的丢弃 / 合并数 */
+    private long reportedDropped, reportedCollapsed;
+
+    Outbox(int capacity, Policy policy, IntFunction<byte[]> snapshots) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.snapshots = snapshots;
+    }
+
+    /** 响应 / 控制消息；返回 false 表示超过硬上限，调用方应断开连接 */
+    boolean offer(byte[] line) {
+        lock.lock();
+        try {
+            if (queue.size() >= 2 * capacity) return false;
+            add(new Entry(line, 0, -1, false));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 格子推送（owner 的农场第 cell 格）；返回 false 表示应断开连接 */
+    boolean offerPush(byte[] line, int owner, int cell) {
+        lock.lock();
+        try {
+            if (pendingSnapshots.contains(owner)) { collapsed++; return true; }
+            if (pushes >= capacity) {
+                switch (policy) {
+                    case DISCONNECT -> { return false; }
+                    case DROP -> {
+                        if (!dropStale(owner, cell)) { dropped++; return true; }
+                    }
+                    case SNAPSHOT -> {
+                        collapse(owner);
+                        return queue.size() < 2 * capacity;
+                    }
+                }
+            }
+            if (queue.size() >= 2 * capacity) return false;
+            add(new Entry(line, owner, cell, false));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 写线程调用：取下一行要发的字节，队列空返回 null */
+    byte[] poll() {
+        while (true) {
+            Entry e;
+            lock.lock();
+            try {
+                e = queue.poll();
+                if (e == null) return null;
+                if (e.snapshot()) {
+                    pendingSnapshots.remove(e.owner());
+                    snapshotsSent++;
+                } else {
+                    if (e.cell() >= 0) pushes--;
+                    bytes -= e.line().length;
+                }
+                sent++;
+            } finally {
+                lock.unlock();
+            }
+            if (!e.snapshot()) return e.line();
+            // 快照在锁外生成：取的是农场最近发布的只读副本，不结算成熟、不进分片，锁外只是为了不让入队方等编码
+            byte[] line = snapshots.apply(e.owner());
+            if (line != null) return line;
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            queue.clear();
+            pendingSnapshots.clear();
+            pushes = 0;
+            bytes = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 积压统计：当前长度 / 峰值 / 待发字节 / 已发 / 丢弃 / 合并进快照的推送数 / 发出的快照数 */
+    String stats() {
+        lock.lock();
+        try {
+            return "depth=" + queue.size() + " peak=" + peakDepth + " bytes=" + bytes + " sent=" + sent
+                    + " dropped=" + dropped + " collapsed=" + collapsed + " snapshots=" + snapshotsSent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 定期日志用：队列此刻有积压，或者自上次报告以来又有丢弃 / 合并，才值得再打一行 */
+    boolean reportDue() {
+        lock.lock();
+        try {
+            if (queue.isEmpty() && dropped == reportedDropped && collapsed == reportedCollapsed) return false;
+            reportedDropped = dropped;
+            reportedCollapsed = collapsed;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ===== 内部（调用方持有 lock） =====
+
+    private void add(Entry e) {
+        queue.add(e);
+        if (e.cell() >= 0) pushes++;
+        if (!e.snapshot()) bytes += e.line().length;
+        if (queue.size() > peakDepth) peakDepth = queue.size();
+    }
+
+    private void remove(Iterator<Entry> it, Entry e) {
+        it.remove();
+        pushes--;
+        bytes -= e.line().length;
+    }
+
+    /** DROP：先找同一格子的旧推送（已被新状态覆盖），找不到就丢最老的推送 */
+    private boolean dropStale(int owner, int cell) {
+        Entry oldest = null;
+        for (Iterator<Entry> it = queue.iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (e.cell() < 0) continue;
+            if (oldest == null) oldest = e;
+            if (e.owner() == owner && e.cell() == cell && cell != MULTI_CELL) {
+                remove(it, e);
+                dropped++;
+                return true;
+            }
+        }
+        if (oldest == null) return false;
+        queue.removeFirstOccurrence(oldest);
+        pushes--;
+        bytes -= oldest.line().length;
+        dropped++;
+        return true;
+    }
+
+    /** SNAPSHOT：所有排队的格子推送按农场合并成一个快照标记，放在该农场第一条推送的位置 */
+    private void collapse(int incomingOwner) {
+        ArrayDeque<Entry> rebuilt = new ArrayDeque<>(queue.size());
+        for (Entry e : queue) {
+            if (e.cell() < 0) {
+                rebuilt.add(e);
+                continue;
+            }
+            collapsed++;
+            bytes -= e.line().length;
+            if (pendingSnapshots.add(e.owner())) rebuilt.add(new Entry(null, e.owner(), -1, true));
+        }
+        collapsed++; // 新到的这条
+        if (pendingSnapshots.add(incomingOwner)) rebuilt.add(new Entry(null, incomingOwner, -1, true));
+        queue.clear();
+        queue.addAll(rebuilt);
+        pushes = 0;
+    }
+}
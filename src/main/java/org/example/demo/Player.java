@@ -15,6 +15,7 @@ public class Player {
     }
 
     public Player(int id, String name, String password, int coins) {
+        this();
         this.id = id;
         this.name = name;
         this.password = password;
@@ -0,0 +1,170 @@
+package org.example.demo;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 作物成熟调度：哈希时间轮。
+ * 每个生长中的格子只是槽里的两个 long（key = playerId<<32 | 格子下标，deadline），
+ * 加入是 O(1)；时间轮线程每个 tick 处理一个槽，把到期的格子按农场分组后一次性交给回调。
+ */
+class RipeningWheel {
+
+    /** 某块农场在本 tick 到期的格子（cells[0..count)），在时间轮线程上调用 */
+    interface DueHandler {
+        void onDue(int playerId, int[] cells, int count);
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final DueHandler handler;
+    private final long startMs = System.currentTimeMillis();
+
+    // 槽：只由时间轮线程访问
+    private final long[][] slotKeys;
+    private final long[][] slotDeadlines;
+    private final int[] slotSize;
+    private long tick;
+
+    // 其他线程的加入请求先进收件箱，时间轮线程每个 tick 整批搬进槽里
+    private final ReentrantLock inboxLock = new ReentrantLock();
+    private long[] inKeys = new long[256];
+    private long[] inDeadlines = new long[256];
+    private int inSize;
+    private long[] swapKeys = new long[256];
+    private long[] swapDeadlines = new long[256];
+
+    private long[] dueBuf = new long[64];
+    private int[] cellBuf = new int[16];
+
+    /** wheelSize 会向上取整到 2 的幂 */
+    RipeningWheel(long tickMs, int wheelSize, DueHandler handler) {
+        this.tickMs = Math.max(1, tickMs);
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.mask = size - 1;
+        this.handler = handler;
+        this.slotKeys = new long[size][];
+        this.slotDeadlines = new long[size][];
+        this.slotSize = new int[size];
+    }
+
+    void start() {
+        Thread t = new Thread(this::run, "ripening-wheel");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** 登记一个在 deadline（毫秒时间戳）成熟的格子；可在任意线程调用 */
+    void schedule(int playerId, int cell, long deadline) {
+        long key = ((long) playerId << 32) | (cell & 0xFFFFFFFFL);
+        inboxLock.lock();
+        try {
+            if (inSize == inKeys.length) {
+                inKeys = Arrays.copyOf(inKeys, inSize * 2);
+                inDeadlines = Arrays.copyOf(inDeadlines, inSize * 2);
+            }
+            inKeys[inSize] = key;
+            inDeadlines[inSize++] = deadline;
+        } finally {
+            inboxLock.unlock();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                long now = System.currentTimeMillis();
+                drainInbox();
+                long target = (now - startMs) / tickMs;
+                while (tick <= target) {
+                    expire((int) (tick & mask), now);
+                    tick++;
+                }
+                long sleep = startMs + tick * tickMs - System.currentTimeMillis();
+                if (sleep > 0) Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void drainInbox() {
+        int n;
+        long[] keys, deadlines;
+        inboxLock.lock();
+        try {
+            n = inSize;
+            if (n == 0) return;
+            keys = inKeys; deadlines = inDeadlines;
+            inKeys = swapKeys; inDeadlines = swapDeadlines;
+            inSize = 0;
+        } finally {
+            inboxLock.unlock();
+        }
+        for (int i = 0; i < n; i++) {
+            long t = Math.max(tick, ceilDiv(deadlines[i] - startMs, tickMs));
+            addToSlot((int) (t & mask), keys[i], deadlines[i]);
+        }
+        // 交换后的数组留作下次收件箱用
+        swapKeys = keys;
+        swapDeadlines = deadlines;
+    }
+
+    private void addToSlot(int slot, long key, long deadline) {
+        int n = slotSize[slot];
+        if (slotKeys[slot] == null) {
+            slotKeys[slot] = new long[8];
+            slotDeadlines[slot] = new long[8];
+        } else if (n == slotKeys[slot].length) {
+            slotKeys[slot] = Arrays.copyOf(slotKeys[slot], n * 2);
+            slotDeadlines[slot] = Arrays.copyOf(slotDeadlines[slot], n * 2);
+        }
+        slotKeys[slot][n] = key;
+        slotDeadlines[slot][n] = deadline;
+        slotSize[slot] = n + 1;
+    }
+
+    /** 处理一个槽：到期的取出，未到期的（后面几圈的）原地保留 */
+    private void expire(int slot, long now) {
+        int n = slotSize[slot];
+        if (n == 0) return;
+        long[] keys = slotKeys[slot], deadlines = slotDeadlines[slot];
+        int keep = 0, due = 0;
+        for (int i = 0; i < n; i++) {
+            if (deadlines[i] <= now) {
+                if (due == dueBuf.length) dueBuf = Arrays.copyOf(dueBuf, due * 2);
+                dueBuf[due++] = keys[i];
+            } else {
+                keys[keep] = keys[i];
+                deadlines[keep++] = deadlines[i];
+            }
+        }
+        slotSize[slot] = keep;
+        if (due > 0) dispatch(due);
+    }
+
+    /** key 高 32 位是 playerId，排序后同一农场的格子相邻 */
+    private void dispatch(int due) {
+        Arrays.sort(dueBuf, 0, due);
+        int i = 0;
+        while (i < due) {
+            int pid = (int) (dueBuf[i] >>> 32);
+            int count = 0;
+            while (i < due && (int) (dueBuf[i] >>> 32) == pid) {
+                if (count == cellBuf.length) cellBuf = Arrays.copyOf(cellBuf, count * 2);
+                cellBuf[count++] = (int) dueBuf[i++];
+            }
+            try {
+                handler.onDue(pid, cellBuf, count);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static long ceilDiv(long a, long b) {
+        return a <= 0 ? 0 : (a + b - 1) / b;
+    }
+}
@@ -1,10 +1,15 @@
 package org.example.demo;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.*;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.channels.FileChannel;
@@ -12,56 +17,123 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 public class Server {
 
     // ===== 协议与模型 =====
     public enum ReqType {
         LOGIN, SIGNUP, PLANT, HARVEST, PING,
-        ADD_FRIEND, LIST_FRIENDS, VISIT_FARM, STEAL
+        ADD_FRIEND, LIST_FRIENDS, VISIT_FARM, STEAL,
+        PLANT_ALL, HARVEST_ALL
     }
     public enum PlotState { EMPTY, GROWING, RIPE }
 
-    /** 统一响应外壳（同一条长连上的 request/response） */
+    /**
+     * 响应外壳（同一条长连上的 request/response）：所有响应共有的字段。
+     * 各操作的响应是下面的子类，只带自己的字段；为 null 的字段不输出。
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     static class RespShell {
         public String type = "RESP";
         public String requestId;
         public boolean ok;
         public String msg;
+    }
 
-        // 通用字段
-        public Integer playerId;     // 发起请求的人
-        public Integer coins;        // 一般返回“自己的金币”（发起者）
-        public String session;
+    /** LOGIN：玩家信息 + 自己的农场快照 */
+    static class LoginResp extends RespShell {
+        public Integer playerId;
         public String playerName;
+        public Integer coins;
+        public String session;
+        public Integer rows, cols;
+        public String cells;         // 每格一个字符，见 farmToCells
+        public Long version;         // 农场版本，之后 VISIT_FARM 可以带上做增量同步
+    }
 
-        // 农场单格操作
+    /** PLANT / HARVEST：单格操作结果 */
+    static class CellResp extends RespShell {
+        public Integer playerId;     // 发起请求的人
         public Integer row, col;
         public String plotState;
+        public Integer coins;        // 发起者自己的金币
+    }
+
+    /** STEAL：单格结果 + 农场主信息 */
+    static class StealResp extends CellResp {
+        public Integer targetId;
+        public Integer ownerCoins;   // 农场主剩余金币
+        public Boolean canSteal;     // 这一轮还能不能继续偷
+    }
 
-        // 农场快照
+    /**
+     * VISIT_FARM：目标农场。请求带了 knownVersion 时按 sync 返回：
+     * UNCHANGED（没有棋盘字段）/ DELTA（deltaCells + deltaStates，同 PUSH_FARM_DELTA）/ FULL（rows + cols + cells）。
+     */
+    static class VisitResp extends RespShell {
+        public Integer playerId;
+        public Integer targetId;
+        public String targetName;
+        public Boolean ownerOnline;  // 农场主是否在线
+        public Boolean canSteal;     // 这一轮还有没有偷菜额度
+        public Integer coins;        // 仅回到自己农场时
+        public Long version;
+        public String sync;
         public Integer rows, cols;
-        public List<String> cells;
+        public String cells;
+        public int[] deltaCells;
+        public String deltaStates;
+    }
 
-        // 好友相关
+    /** ADD_FRIEND */
+    static class FriendResp extends RespShell {
+        public Integer playerId;
         public Integer friendId;
         public String friendName;
+    }
+
+    /** LIST_FRIENDS */
+    static class FriendListResp extends RespShell {
+        public Integer playerId;
         public List<FriendInfo> friends;
+    }
 
-        // 访问农场相关
-        public Integer targetId;
-        public String targetName;
-        public Boolean ownerOnline;     // 农场主是否在线
-        public Boolean canSteal;        // 这一轮还有没有偷菜额度
+    /** PLANT_ALL / HARVEST_ALL：处理了几块地；格子变化随后由 PUSH_FARM_DELTA 推送 */
+    static class BatchResp extends RespShell {
+        public Integer playerId;
+        public Integer count;
+        public Integer coins;
+    }
 
-        // 偷菜响应可选字段（农场主剩余金币）
-        public Integer ownerCoins;
+    /** 一条请求（JSON 行或二进制帧解码而来），只有本类型用到的字段非空 */
+    static final class Request {
+        String type;
+        String requestId;
+        String username, password;
+        Integer playerId, targetId;
+        Integer row, col;
+        /** PLANT_ALL / HARVEST_ALL 要处理的格子下标（row * cols + col）；null 表示所有符合条件的格子 */
+        int[] cells;
+        /** VISIT_FARM：客户端手里这块农场的版本 */
+        Long knownVersion;
+
+        /** 未知类型返回 null；PING 不区分大小写（与旧协议一致） */
+        ReqType reqType() {
+            if ("PING".equalsIgnoreCase(type)) return ReqType.PING;
+            try {
+                return ReqType.valueOf(type);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
     }
 
-    /** 主动推送：单格更新（成熟/收获/播种/被偷） */
+    /** 单格更新（成熟/收获/播种/被偷）：先进该农场的合并缓冲，再作为 PushFarmDelta 推出去 */
     static class PushCellUpdate {
-        public String type = "PUSH_CELL_UPDATE";
         public Integer playerId;     // 农场主人 id
         public Integer row, col;
         public String plotState;     // EMPTY/GROWING/RIPE
@@ -76,30 +148,270 @@ public class Server {
         }
     }
 
-    /** 每个玩家一块 4x4 农场（内存） */
-    static class Farm {
-        final int rows = 4, cols = 4;
-        final PlotState[][] board = new PlotState[rows][cols];
-        final Long[][] ripeAt = new Long[rows][cols]; // 仅当 GROWING 时有预计成熟时间
-        Farm() {
-            for (int r=0;r<rows;r++) {
-                for (int c=0;c<cols;c++) {
-                    board[r][c] = PlotState.EMPTY;
-                    ripeAt[r][c] = null;
+    /** 主动推送：一块农场在合并窗口内变化的格子（cells 为格子下标，states 每格一个字符，同 RESP 的 cells） */
+    static class PushFarmDelta {
+        public String type = "PUSH_FARM_DELTA";
+        public Integer playerId;     // 农场主人 id
+        public Long since;           // 本条之前的农场版本：客户端版本不小于它才说明中间没有漏掉推送
+        public Long version;         // 应用本条之后的农场版本
+        public int[] cells;
+        public String states;
+        public Integer coins;        // 农场主自己的金币
+    }
+
+    /** 主动推送：整块农场快照（发送队列溢出时代替被合并掉的单格推送） */
+    static class PushFarmSnapshot {
+        public String type = "PUSH_FARM_SNAPSHOT";
+        public Integer playerId;     // 农场主人 id
+        public Integer rows, cols;
+        public String cells;
+        public Long version;
+        public Integer coins;        // 农场主自己的金币
+    }
+
+    /**
+     * 农场格子的存储和只读操作，Farm（可写）和 FarmView（只读副本）共用。
+     * 格子状态按 2 bit 打包进 long 数组，每个 long 放 32 格：第 i = r*cols+c 格在 words[i / 32] 的
+     * [(i % 32) * 2, +1] 位，编码同 PlotState.ordinal()（按小端拆成字节正好是 farms.bin 的布局）；
+     * 预计成熟时间放在原始 long 数组里，0 表示无（仅 GROWING 时有值）。
+     */
+    abstract static class FarmCells {
+        final int rows, cols;
+        final long[] words;
+        final long[] ripeAt;
+        /** 最近 CHANGE_RING 次修改的格子下标：版本 v 的修改记在 changeRing[v & (CHANGE_RING - 1)] */
+        final short[] changeRing;
+
+        FarmCells(int rows, int cols, long[] words, long[] ripeAt, short[] changeRing) {
+            this.rows = rows;
+            this.cols = cols;
+            this.words = words;
+            this.ripeAt = ripeAt;
+            this.changeRing = changeRing;
+        }
+
+        abstract long version();
+
+        /** 第 i 格的 PlotState.ordinal() */
+        int stateAt(int i) {
+            return (int) (words[i >>> 5] >>> ((i & 31) << 1)) & 3;
+        }
+
+        PlotState get(int r, int c) {
+            return PLOT_STATES[stateAt(r * cols + c)];
+        }
+
+        long ripeAt(int r, int c) { return ripeAt[r * cols + c]; }
+
+        /** known 之后改过的格子下标（去重，行优先）；版本号不认识或已超出变化环时返回 null */
+        int[] changedSince(long known) {
+            long version = version(), n = version - known;
+            if (n < 0 || n > CHANGE_RING) return null;
+            boolean[] touched = new boolean[rows * cols];
+            int count = 0;
+            for (long v = known + 1; v <= version; v++) {
+                int i = changeRing[(int) (v & (CHANGE_RING - 1))];
+                if (!touched[i]) { touched[i] = true; count++; }
+            }
+            int[] out = new int[count];
+            for (int i = 0, k = 0; k < count; i++) {
+                if (touched[i]) out[k++] = i;
+            }
+            return out;
+        }
+
+        /** RIPE = 0b10，GROWING = 0b01：数一下“高位为 1”的格子即可（未用的高位恒为 0） */
+        int countRipe() {
+            int n = 0;
+            for (long w : words) n += Long.bitCount(w & 0xAAAAAAAAAAAAAAAAL);
+            return n;
+        }
+
+        boolean hasGrowing() {
+            for (long w : words) {
+                if ((w & 0x5555555555555555L) != 0) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 每个玩家一块农场（内存），尺寸见 farm.size，最大 MAX_FARM_SIDE x MAX_FARM_SIDE。
+     * 只在所属分片线程上修改（见 FarmShards / onFarm），不加锁；其他线程只读 view。
+     */
+    static class Farm extends FarmCells {
+        /** 每次 set 加一；起点是进程启动时随机取的，重启前客户端记下的版本号不会被误认 */
+        long version = VERSION_BASE;
+        /** 最近一次发布的只读副本：分片上的每个任务结束时发布一次（有修改才复制）；构造时还没有，由 farmOf / 启动加载后发布 */
+        volatile FarmView view;
+        /**
+         * 这一轮的偷菜配额：高 32 位为本轮可偷块数（第一次偷时成熟数的 25%），低 32 位为已偷块数；
+         * 0 表示这一轮还没开始。偷菜在分片线程上改，访问 / 上线在别的线程读或清零，所以用 CAS。
+         */
+        volatile long stealQuota;
+
+        /** 新玩家的默认尺寸 */
+        Farm() { this(FARM_ROWS, FARM_COLS); }
+
+        Farm(int rows, int cols) {
+            super(rows, cols, new long[(rows * cols + 31) >>> 5], new long[rows * cols], new short[CHANGE_RING]);
+        }
+
+        @Override
+        long version() { return version; }
+
+        /** 设置格子状态；ripe 只在 GROWING 时保留 */
+        void set(int r, int c, PlotState s, long ripe) {
+            int i = r * cols + c, w = i >>> 5, shift = (i & 31) << 1;
+            words[w] = (words[w] & ~(3L << shift)) | ((long) s.ordinal() << shift);
+            ripeAt[i] = s == PlotState.GROWING ? ripe : 0;
+            changeRing[(int) (++version & (CHANGE_RING - 1))] = (short) i;
+        }
+
+        void set(int r, int c, PlotState s) { set(r, c, s, 0); }
+
+        /** 这一轮还能不能偷（只读，不开新一轮）：ripe 为当前成熟块数 */
+        boolean hasStealQuota(int ripe) {
+            if (ripe < 4) return false;
+            long q = stealQuota;
+            return q == 0 || (int) q < (int) (q >>> 32);
+        }
+
+        /** 占用一块配额：本轮第一次偷时以 ripe 定下可偷块数；额度已满返回 false */
+        boolean tryTakeSteal(int ripe) {
+            while (true) {
+                long q = stealQuota;
+                long next;
+                if (q == 0) {
+                    int allowed = ripe / 4;
+                    if (allowed <= 0) return false;
+                    next = ((long) allowed << 32) | 1;
+                } else {
+                    if ((int) q >= (int) (q >>> 32)) return false;
+                    next = q + 1;
                 }
+                if (STEAL_QUOTA.compareAndSet(this, q, next)) return true;
+            }
+        }
+
+        /** 结束这一轮（没有成熟的了 / 农场主上线） */
+        void resetStealQuota() { stealQuota = 0; }
+
+        private static final VarHandle STEAL_QUOTA;
+        static {
+            try {
+                STEAL_QUOTA = MethodHandles.lookup().findVarHandle(Farm.class, "stealQuota", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        /** 版本变了就复制出新的只读副本（写者调用） */
+        void publish() {
+            FarmView v = view;
+            if (v == null || v.version != version) view = new FarmView(this);
+        }
+    }
+
+    /**
+     * 农场某个版本的只读副本（写时复制）：登录 / 访问 / 推送快照 / 落盘都读它，不进分片、不加锁。
+     * 64x64 的农场一份约 33 KB，只在该农场有修改的任务结束时复制一次。
+     */
+    static final class FarmView extends FarmCells {
+        final long version;
+        /** 生长中格子最早的成熟时间，没有时为 Long.MAX_VALUE：读者据此判断有没有写者还没结算的成熟 */
+        final long nextRipe;
+        /** 由 ripenedAt 推算出来的副本：格子比 version 新，不能拿来算增量 */
+        final boolean projected;
+
+        FarmView(Farm f) {
+            super(f.rows, f.cols, f.words.clone(), f.ripeAt.clone(), f.changeRing.clone());
+            this.version = f.version;
+            this.nextRipe = hasGrowing() ? earliestRipe(ripeAt) : Long.MAX_VALUE;
+            this.projected = false;
+        }
+
+        private FarmView(FarmView v, long[] words, long[] ripeAt) {
+            super(v.rows, v.cols, words, ripeAt, v.changeRing);
+            this.version = v.version;
+            this.nextRipe = earliestRipe(ripeAt);
+            this.projected = true;
+        }
+
+        private static long earliestRipe(long[] ripeAt) {
+            long next = Long.MAX_VALUE;
+            for (long t : ripeAt) {
+                if (t != 0 && t < next) next = t;
             }
+            return next;
         }
+
+        /** 把 now 之前到点的 GROWING 看作 RIPE 的副本；没有这样的格子时返回自己 */
+        FarmView ripenedAt(long now) {
+            if (nextRipe > now) return this;
+            long[] w = words.clone(), t = ripeAt.clone();
+            for (int i = 0; i < t.length; i++) {
+                if (t[i] == 0 || t[i] > now) continue;
+                int shift = (i & 31) << 1;
+                w[i >>> 5] = (w[i >>> 5] & ~(3L << shift)) | ((long) PlotState.RIPE.ordinal() << shift);
+                t[i] = 0;
+            }
+            return new FarmView(this, w, t);
+        }
+
+        @Override
+        long version() { return version; }
+    }
+
+    private static final PlotState[] PLOT_STATES = PlotState.values();
+    /** 农场边长上限：格子下标要放进 u16 / short，行列要放进 u8 */
+    static final int MAX_FARM_SIDE = 64;
+    // 新农场尺寸：-Dfarm.size=RxC（默认 4x4，每边 1..64；已有农场保持存档里的尺寸）
+    static final int FARM_ROWS, FARM_COLS;
+    static {
+        String[] size = System.getProperty("farm.size", "4x4").toLowerCase(Locale.ROOT).split("x");
+        int rows = 4, cols = 4;
+        try {
+            rows = Integer.parseInt(size[0].trim());
+            cols = Integer.parseInt(size[size.length - 1].trim());
+        } catch (NumberFormatException ignore) {}
+        FARM_ROWS = Math.max(1, Math.min(MAX_FARM_SIDE, rows));
+        FARM_COLS = Math.max(1, Math.min(MAX_FARM_SIDE, cols));
     }
+    /** 每块农场保留最近多少次修改，用于 VISIT_FARM 增量同步（2 的幂） */
+    static final int CHANGE_RING = 32;
+    static final long VERSION_BASE = ThreadLocalRandom.current().nextLong(1L << 40) << 8;
+    /** 下标 = PlotState.ordinal() */
+    static final String CELL_CHARS = "EGR";
 
     // ===== 服务器字段 =====
     private final int port;
-    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final ExecutorService pool = "vthread".equalsIgnoreCase(IO_MODE)
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : Executors.newCachedThreadPool();
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    /** 请求执行：同一玩家的好友 / 观看请求串行，其余并行，见 laneOf；改农场的请求进 shards */
+    private final KeyedExecutor lanes = new KeyedExecutor(pool);
+    // 农场分片：-Dfarm.shards=N（单写者线程数，农场按农场主 id 取模分到各分片）
+    static final int FARM_SHARDS = Integer.getInteger("farm.shards", Runtime.getRuntime().availableProcessors());
+    private final FarmShards shards = new FarmShards(FARM_SHARDS);
+    /** 报文日志（异步、可采样，见 WireLog） */
+    private final WireLog wireLog = new WireLog();
+    /**
+     * 成熟模式：-Dfarm.ripening=timer|lazy。
+     * lazy：GROWING->RIPE 在读格子时按 now >= ripeAt 计算，只有农场主在线或有观众的农场才进时间轮（用于推送）。
+     */
+    static final boolean LAZY_RIPENING = "lazy".equalsIgnoreCase(System.getProperty("farm.ripening", "timer"));
+    /** 作物成熟时间轮：-Dfarm.wheel.tickMs=N（精度），512 槽 */
+    private final RipeningWheel ripening = new RipeningWheel(
+            Long.getLong("farm.wheel.tickMs", 100), 512, this::ripenDue);
 
     /** username(lowercase) -> Player */
     private final Map<String, Player> players = new ConcurrentHashMap<>();
     /** playerId -> Player */
     private final Map<Integer, Player> playersById = new ConcurrentHashMap<>();
+    /** playerId -> 金币余额：服务器端的余额只在这里，Player.coins 不用 */
+    private final CoinLedger ledger = new CoinLedger();
     /** playerId -> Farm */
     private final Map<Integer, Farm> farms = new ConcurrentHashMap<>();
     /** playerId -> 长连连接，用于主动推送 */
@@ -113,39 +425,93 @@ public class Server {
     /** viewerId -> 当前正在看的 ownerId（可以是自己或别人） */
     private final Map<Integer, Integer> currentViewByViewer = new ConcurrentHashMap<>();
 
-    /** 偷菜配额状态（每个 ownerId） */
-    private final Map<Integer, Integer> baselineRipe = new ConcurrentHashMap<>();
-    private final Map<Integer, Integer> allowedSteals = new ConcurrentHashMap<>();
-    private final Map<Integer, Integer> stolenSoFar   = new ConcurrentHashMap<>();
-
     private final AtomicInteger nextId = new AtomicInteger(1);
 
     private final ObjectMapper mapper = new ObjectMapper()
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true)
             .configure(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS, true);
+    /** 响应专用的序列化器（按运行时类型，各响应 DTO 的序列化器由 Jackson 缓存），省略为 null 的字段 */
+    private final ObjectWriter respWriter = mapper.copy()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .writer();
 
     // 持久化文件
     private static final Path DATA_DIR     = Paths.get("data");
     private static final Path PLAYERS_FILE = DATA_DIR.resolve("players.json");
     private static final Path FARMS_FILE   = DATA_DIR.resolve("farms.json");
     private static final Path FRIENDS_FILE = DATA_DIR.resolve("friends.json");
-    private final ExecutorService diskWriter = Executors.newSingleThreadExecutor();
+    private static final Path FARMS_BIN    = DATA_DIR.resolve("farms.bin");
+
+    // 农场快照格式：-Dfarm.snapshot=bin|json；bin 模式下若还没有 farms.bin 会先从 farms.json 读
+    static final boolean BINARY_SNAPSHOT = !"json".equalsIgnoreCase(System.getProperty("farm.snapshot", "bin"));
+
+    // 合并写回：-Dfarm.save.intervalMs=N（刷盘周期），-Dfarm.save.dirtyThreshold=N（累计多少次修改提前刷盘）
+    private final WriteBehind writeBehind = new WriteBehind(
+            Long.getLong("farm.save.intervalMs", 500),
+            Integer.getInteger("farm.save.dirtyThreshold", 256));
+    private final WriteBehind.Slot playersSlot = writeBehind.register("players", this::flushPlayersSync);
+    private final WriteBehind.Slot farmsSlot   = writeBehind.register("farms", this::flushFarmsSync);
+    private final WriteBehind.Slot friendsSlot = writeBehind.register("friends", this::flushFriendsSync);
+
+    // 追加写日志：-Dfarm.wal=true|false，-Dfarm.wal.compactBytes=N（当前段超过多少字节就折叠进快照）
+    static final boolean WAL_ENABLED = Boolean.parseBoolean(System.getProperty("farm.wal", "true"));
+    static final long WAL_COMPACT_BYTES = Long.getLong("farm.wal.compactBytes", 4L << 20);
+    private final WriteAheadLog wal = WAL_ENABLED ? new WriteAheadLog(DATA_DIR, 65536) : null;
+
+    // 每条连接的发送队列：-Dfarm.out.capacity=N（排队的推送条数上限），-Dfarm.out.policy=snapshot|drop|disconnect
+    static final int OUT_CAPACITY = Integer.getInteger("farm.out.capacity", 1024);
+    static final Outbox.Policy OUT_POLICY = Outbox.Policy.parse(System.getProperty("farm.out.policy", "snapshot"));
+
+    // 推送合并窗口：-Dfarm.push.windowMs=N（同一农场的格子更新攒 N 毫秒合成一条 PUSH_FARM_DELTA，0 表示每次广播立即发出）
+    static final long PUSH_WINDOW_MS = Long.getLong("farm.push.windowMs", 50);
+
+    // 落盘前等各分片把已投递的任务做完（发布副本）的上限；超时照样用当时的副本写
+    private static final long SNAPSHOT_WAIT_MS = 5000;
+
+    // 请求流水线：-Dfarm.pipeline.max=N（每条连接同时在执行 / 排队的请求数上限，0 表示在读线程上逐个处理）
+    static final int PIPELINE_MAX = Integer.getInteger("farm.pipeline.max", 64);
+
+    // 启动参数：-Dfarm.io=pool|vthread|nio，-Dfarm.io.loops=N（仅 nio）
+    static final String IO_MODE = System.getProperty("farm.io", "pool");
+    static final int IO_LOOPS = Integer.getInteger("farm.io.loops",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
 
     public Server(int port) { this.port = port; }
 
     // ===== 启动 =====
     public void start() throws IOException {
+        wireLog.start();
         loadPlayersFromDisk();
         loadFarmsFromDisk();
         loadFriendsFromDisk();
+        int replayed = wal == null ? 0 : wal.replay(new WalReplayer());
+        // 加载和重放直接改农场（还没有别的线程）；完成后发布只读副本，再让时间轮开始回调
+        for (Farm f : farms.values()) f.publish();
+        ripening.start();
+        if (wal != null) {
+            System.out.println("[WAL] replayed records=" + replayed);
+            wal.start();
+            if (replayed > 0) compactWal(); // 重放结果立即折叠进快照
+            scheduler.scheduleWithFixedDelay(this::maybeCompactWal, 5, 5, TimeUnit.SECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(this::logBacklog, 10, 10, TimeUnit.SECONDS);
+        writeBehind.start();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            flushPlayersSync();
-            flushFarmsSync();
-            flushFriendsSync();
+            writeBehind.close();
+            if (wal != null) {
+                compactWal();
+                wal.close();
+            }
+            System.out.println("[COINS] " + ledger.audit());
         }));
 
+        if ("nio".equalsIgnoreCase(IO_MODE)) {
+            new NioTransport(this, port, IO_LOOPS).run();
+            return;
+        }
+
         try (ServerSocket ss = new ServerSocket(port)) {
-            System.out.println("Server listening on " + port);
+            System.out.println("Server listening on " + port + " (io=" + IO_MODE.toLowerCase(Locale.ROOT) + ")");
             while (true) {
                 Socket s = ss.accept();
                 // 不因读超时断开；若要心跳踢死连接可改为 60_000 并让客户端定期 PING
@@ -155,137 +521,36 @@ public class Server {
         }
     }
 
-    // ===== 每个客户端一个“长连”循环 =====
+    // ===== 每个客户端一个“长连”循环（阻塞 IO 模式） =====
     private void handleLongConn(Socket s) {
         ClientConn conn = null;
         try (s;
-             BufferedReader in  = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
-             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
-
-            conn = new ClientConn(s, out);
-
-            String line;
-            while ((line = in.readLine()) != null) {
-                line = line.trim();
-                if (line.isEmpty()) continue;
-
-                System.out.println("[RECV] " + line);
-
-                JsonNode node = mapper.readTree(line);
-                String requestId = optText(node, "requestId");
-                String type = optText(node, "type");
-                if (type == null) {
-                    RespShell bad = new RespShell();
-                    bad.requestId = requestId;
-                    bad.ok = false; bad.msg = "bad request: missing type";
-                    String outJson = mapper.writeValueAsString(bad);
-                    safeWrite(out, outJson);
-                    System.out.println("[SEND] " + outJson);
-                    continue;
-                }
-
-                if ("PING".equalsIgnoreCase(type)) {
-                    RespShell resp = new RespShell();
-                    resp.requestId = requestId;
-                    resp.ok = true; resp.msg = "pong";
-                    String outJson = mapper.writeValueAsString(resp);
-                    safeWrite(out, outJson);
-                    System.out.println("[SEND] " + outJson);
-                    continue;
-                }
-
-                ReqType rt;
-                try { rt = ReqType.valueOf(type); }
-                catch (Exception e) {
-                    RespShell resp = new RespShell();
-                    resp.requestId = requestId;
-                    resp.ok = false; resp.msg = "unknown type";
-                    String outJson = mapper.writeValueAsString(resp);
-                    safeWrite(out, outJson);
-                    System.out.println("[SEND] " + outJson);
-                    continue;
+             InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+
+            conn = new SocketConn(this, s, out, pool);
+
+            // 第一个字节决定编码：0xFA 前导为二进制帧，否则是 JSON 行
+            in.mark(1);
+            int first = in.read();
+            if (first == BinaryCodec.MAGIC) {
+                if (in.read() != BinaryCodec.VERSION) throw new IOException("unsupported binary codec version");
+                conn.binary = true;
+                DataInputStream din = new DataInputStream(in);
+                while (true) {
+                    int len;
+                    try { len = din.readInt(); } catch (EOFException e) { break; }
+                    if (len <= 0 || len > BinaryCodec.MAX_FRAME) throw new IOException("bad frame length " + len);
+                    byte[] frame = new byte[len];
+                    din.readFully(frame);
+                    handleFrame(conn, frame);
                 }
-
-                RespShell resp;
-                switch (rt) {
-                    case SIGNUP -> {
-                        String username = optText(node, "username");
-                        String password = optText(node, "password");
-                        resp = doSignUp(username, password);
-                        resp.requestId = requestId;
-                        String outJson = mapper.writeValueAsString(resp);
-                        safeWrite(out, outJson);
-                        System.out.println("[SEND] " + outJson);
-                    }
-                    case LOGIN -> {
-                        String username = optText(node, "username");
-                        String password = optText(node, "password");
-                        resp = doLogin(username, password);
-                        resp.requestId = requestId;
-                        String outJson = mapper.writeValueAsString(resp);
-                        safeWrite(out, outJson);
-                        System.out.println("[SEND] " + outJson);
-                        if (resp.ok && resp.playerId != null) {
-                            bindConn(resp.playerId, conn);
-                        }
-                    }
-                    case PLANT -> {
-                        Integer pid = optInt(node, "playerId");
-                        Integer row = optInt(node, "row");
-                        Integer col = optInt(node, "col");
-                        resp = doPlant(pid, row, col);
-                        resp.requestId = requestId;
-                        String outJson = mapper.writeValueAsString(resp);
-                        safeWrite(out, outJson);
-                        System.out.println("[SEND] " + outJson);
-                    }
-                    case HARVEST -> {
-                        Integer pid = optInt(node, "playerId");
-                        Integer row = optInt(node, "row");
-                        Integer col = optInt(node, "col");
-                        resp = doHarvest(pid, row, col);
-                        resp.requestId = requestId;
-                        String outJson = mapper.writeValueAsString(resp);
-                        safeWrite(out, outJson);
-                        System.out.println("[SEND] " + outJson);
-                    }
-                    case ADD_FRIEND -> {
-                        Integer pid = optInt(node, "playerId");
-                        Integer targetId = optInt(node, "targetId");
-                        resp = doAddFriend(pid, targetId);
-                        resp.requestId = requestId;
-                        String outJson = mapper.writeValueAsString(resp);
-                        safeWrite(out, outJson);
-                        System.out.println("[SEND] " + outJson);
-                    }
-                    case LIST_FRIENDS -> {
-                        Integer pid = optInt(node, "playerId");
-                        resp = doListFriends(pid);
-                        resp.requestId = requestId;
-                        String outJson = mapper.writeValueAsString(resp);
-                        safeWrite(out, outJson);
-                        System.out.println("[SEND] " + outJson);
-                    }
-                    case VISIT_FARM -> {
-                        Integer pid = optInt(node, "playerId");
-                        Integer targetId = optInt(node, "targetId");
-                        resp = doVisitFarm(pid, targetId);
-                        resp.requestId = requestId;
-                        String outJson = mapper.writeValueAsString(resp);
-                        safeWrite(out, outJson);
-                        System.out.println("[SEND] " + outJson);
-                    }
-                    case STEAL -> {
-                        Integer pid = optInt(node, "playerId");
-                        Integer targetId = optInt(node, "targetId");
-                        Integer row = optInt(node, "row");
-                        Integer col = optInt(node, "col");
-                        resp = doSteal(pid, targetId, row, col);
-                        resp.requestId = requestId;
-                        String outJson = mapper.writeValueAsString(resp);
-                        safeWrite(out, outJson);
-                        System.out.println("[SEND] " + outJson);
-                    }
+            } else if (first >= 0) {
+                in.reset();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    handleLine(conn, line);
                 }
             }
             System.out.println("[INFO] client closed");
@@ -294,36 +559,336 @@ public class Server {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            if (conn != null && conn.playerId != null) {
-                int viewerId = conn.playerId;
-                conns.remove(viewerId, conn);
-
-                // 清理观众关系
-                Integer owner = currentViewByViewer.remove(viewerId);
-                if (owner != null) {
-                    Set<Integer> vs = viewersByOwner.get(owner);
-                    if (vs != null) {
-                        vs.remove(viewerId);
-                        if (vs.isEmpty()) viewersByOwner.remove(owner);
-                    }
+            if (conn != null) onConnClosed(conn);
+        }
+    }
+
+    /** 处理一行 JSON 请求并写回响应；阻塞 IO 和 NIO 两种传输共用 */
+    void handleLine(ClientConn conn, String line) throws IOException {
+        line = line.trim();
+        if (line.isEmpty()) return;
+
+        Request q = parseRequest(line);
+        wireLog.recv(q.type, line);
+        handleRequest(conn, q);
+    }
+
+    /** 处理二进制连接上的一帧请求（不含长度前缀），见 BinaryCodec */
+    void handleFrame(ClientConn conn, byte[] frame) throws IOException {
+        Request q = BinaryCodec.decodeRequest(frame);
+        wireLog.recv(q.type, frame);
+        handleRequest(conn, q);
+    }
+
+    /**
+     * 用 JsonParser 流式读取一行请求，只取认识的字段，不建 JsonNode 树。
+     * 文本字段接受任意标量（同 asText），整数字段接受任意数字，其他类型按缺省处理。
+     */
+    private Request parseRequest(String line) throws IOException {
+        Request q = new Request();
+        try (JsonParser p = mapper.getFactory().createParser(line)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) throw new IOException("request is not a JSON object");
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.currentName();
+                JsonToken t = p.nextToken();
+                switch (field) {
+                    case "type" -> q.type = scalarText(p, t);
+                    case "requestId" -> q.requestId = scalarText(p, t);
+                    case "username" -> q.username = scalarText(p, t);
+                    case "password" -> q.password = scalarText(p, t);
+                    case "playerId" -> q.playerId = intValue(p, t);
+                    case "targetId" -> q.targetId = intValue(p, t);
+                    case "row" -> q.row = intValue(p, t);
+                    case "col" -> q.col = intValue(p, t);
+                    case "cells" -> q.cells = cellList(p, t);
+                    case "knownVersion" -> q.knownVersion = longValue(p, t);
+                    default -> p.skipChildren();
                 }
             }
         }
+        return q;
+    }
+
+    private static String scalarText(JsonParser p, JsonToken t) throws IOException {
+        if (t == JsonToken.VALUE_NULL) return null;
+        if (t.isScalarValue()) return p.getText();
+        p.skipChildren();
+        return null;
+    }
+
+    private static Integer intValue(JsonParser p, JsonToken t) throws IOException {
+        if (t.isNumeric()) return p.getNumberValue().intValue();
+        p.skipChildren();
+        return null;
+    }
+
+    private static Long longValue(JsonParser p, JsonToken t) throws IOException {
+        if (t == JsonToken.VALUE_NUMBER_INT) return p.getLongValue();
+        p.skipChildren();
+        return null;
+    }
+
+    /** 格子下标数组；不是整数的元素记成 -1（之后按越界处理），null / 非数组按缺省处理 */
+    private static int[] cellList(JsonParser p, JsonToken t) throws IOException {
+        if (t != JsonToken.START_ARRAY) {
+            p.skipChildren();
+            return null;
+        }
+        int[] out = new int[16];
+        int n = 0;
+        while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+            if (n == out.length) out = Arrays.copyOf(out, n * 2);
+            out[n++] = t == JsonToken.VALUE_NUMBER_INT ? p.getIntValue() : -1;
+            p.skipChildren();
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /** 每种请求一个处理函数：返回的响应由 handleRequest 统一补 requestId 并写回 */
+    @FunctionalInterface
+    private interface RequestHandler {
+        RespShell handle(ClientConn conn, Request q);
+    }
+
+    private final Map<ReqType, RequestHandler> handlers = buildHandlers();
+
+    private Map<ReqType, RequestHandler> buildHandlers() {
+        Map<ReqType, RequestHandler> h = new EnumMap<>(ReqType.class);
+        h.put(ReqType.PING, (conn, q) -> {
+            RespShell r = new RespShell();
+            r.ok = true; r.msg = "pong";
+            return r;
+        });
+        h.put(ReqType.SIGNUP, (conn, q) -> doSignUp(q.username, q.password));
+        h.put(ReqType.LOGIN, (conn, q) -> {
+            LoginResp r = doLogin(q.username, q.password);
+            if (r.ok && r.playerId != null) bindConn(r.playerId, conn);
+            return r;
+        });
+        h.put(ReqType.PLANT, (conn, q) -> onFarm(q.playerId, () -> doPlant(q.playerId, q.row, q.col)));
+        h.put(ReqType.HARVEST, (conn, q) -> onFarm(q.playerId, () -> doHarvest(q.playerId, q.row, q.col)));
+        h.put(ReqType.ADD_FRIEND, (conn, q) -> doAddFriend(q.playerId, q.targetId));
+        h.put(ReqType.LIST_FRIENDS, (conn, q) -> doListFriends(q.playerId));
+        h.put(ReqType.VISIT_FARM, (conn, q) -> doVisitFarm(q.playerId, q.targetId, q.knownVersion));
+        h.put(ReqType.STEAL, (conn, q) -> onFarm(q.targetId, () -> doSteal(q.playerId, q.targetId, q.row, q.col)));
+        h.put(ReqType.PLANT_ALL, (conn, q) -> onFarm(q.playerId, () -> doPlantAll(q.playerId, q.cells)));
+        h.put(ReqType.HARVEST_ALL, (conn, q) -> onFarm(q.playerId, () -> doHarvestAll(q.playerId, q.cells)));
+        return h;
+    }
+
+    /**
+     * 在农场所在的分片线程上执行一次修改，结束时发布新的只读副本。ownerId 为 null 时直接执行（由 op 自己回 bad request）。
+     * 改农场的请求都已按 laneOf 投进了这个分片（handleRequest），所以这里总是直接执行；IO 线程不会走到等结果的分支。
+     */
+    private <T> T onFarm(Integer ownerId, Supplier<T> op) {
+        if (ownerId == null) return op.get();
+        return shards.call(ownerId, () -> {
+            try {
+                return op.get();
+            } finally {
+                publishView(ownerId);
+            }
+        });
+    }
+
+    /** 不等结果的版本（时间轮回调等） */
+    private void onFarmAsync(int ownerId, Runnable op) {
+        shards.execute(ownerId, () -> {
+            try {
+                op.run();
+            } finally {
+                publishView(ownerId);
+            }
+        });
+    }
+
+    /**
+     * 运行期取玩家的农场，没有就建一块空的并先发布副本（读者马上要读 view）。
+     * 已有农场时不分配任何东西；启动加载 / 重放建的农场在 start() 里统一发布。
+     */
+    private Farm farmOf(int ownerId) {
+        return farms.computeIfAbsent(ownerId, k -> {
+            Farm f = new Farm();
+            f.publish();
+            return f;
+        });
+    }
+
+    private void publishView(int ownerId) {
+        Farm f = farms.get(ownerId);
+        if (f != null) f.publish();
+    }
+
+    /**
+     * 同一连接上的请求不必等前一个处理完：按 laneOf 分道，同道按到达顺序执行，不同道并行，
+     * 响应按完成顺序写回（客户端靠 requestId 对应）。
+     */
+    private void handleRequest(ClientConn conn, Request q) throws IOException {
+        RespShell resp;
+        if (q.type == null) {
+            resp = new RespShell();
+            resp.ok = false; resp.msg = "bad request: missing type";
+        } else {
+            ReqType rt = q.reqType();
+            if (rt == null) {
+                resp = new RespShell();
+                resp.ok = false; resp.msg = "unknown type";
+            } else if (wal != null && MUTATING.contains(rt) && wal.isBroken()) {
+                resp = new RespShell();
+                resp.ok = false; resp.msg = "storage unavailable";
+            } else {
+                long lane = laneOf(rt, q);
+                if (PIPELINE_MAX == 0) {
+                    // 逐个处理：改农场的请求照样进分片（读线程不等结果），其余在读线程上做；都占唯一的名额
+                    submit(conn, lane < PLAYER_LANE ? lane : -1, rt, q);
+                    return;
+                }
+                if (lane >= 0) {
+                    submit(conn, lane, rt, q);
+                    return;
+                }
+                resp = handlers.get(rt).handle(conn, q);
+                resp.requestId = q.requestId;
+                replyDurable(conn, rt, q.type, resp, null);
+                return;
+            }
+        }
+        resp.requestId = q.requestId;
+        reply(conn, q.type, resp);
+    }
+
+    /** 会写 WAL 的请求：成功时要等落盘才回 ok */
+    private static final Set<ReqType> MUTATING = EnumSet.of(
+            ReqType.SIGNUP, ReqType.PLANT, ReqType.HARVEST, ReqType.PLANT_ALL, ReqType.HARVEST_ALL,
+            ReqType.STEAL, ReqType.ADD_FRIEND);
+
+    private static final long PLAYER_LANE = 1L << 32;
+
+    /**
+     * 请求所在的执行道，-1 表示直接在读线程上处理：
+     * 改农场的请求按农场 id 分道，进该农场的分片邮箱（同一农场上的操作保持到达顺序）；
+     * 看谁的农场、好友关系按发起者分道，和种地并行但彼此有序（先加好友再去看他的农场不会乱序）。
+     * LOGIN 必须先绑定连接再处理后面的请求，SIGNUP / PING 很轻，都留在读线程上。
+     */
+    private static long laneOf(ReqType rt, Request q) {
+        switch (rt) {
+            case PLANT, HARVEST, PLANT_ALL, HARVEST_ALL -> { if (q.playerId != null) return q.playerId & 0xFFFFFFFFL; }
+            case STEAL -> { if (q.targetId != null) return q.targetId & 0xFFFFFFFFL; }
+            case VISIT_FARM, ADD_FRIEND, LIST_FRIENDS -> { if (q.playerId != null) return PLAYER_LANE | (q.playerId & 0xFFFFFFFFL); }
+            default -> {}
+        }
+        return -1;
+    }
+
+    private void submit(ClientConn conn, long lane, ReqType rt, Request q) throws JsonProcessingException {
+        if (!conn.acquireSlot()) {
+            RespShell r = new RespShell();
+            r.requestId = q.requestId; r.ok = false; r.msg = "too many requests in flight";
+            reply(conn, q.type, r);
+            return;
+        }
+        Runnable task = () -> {
+            boolean handedOff = false;
+            try {
+                RespShell resp = handlers.get(rt).handle(conn, q);
+                resp.requestId = q.requestId;
+                handedOff = true;
+                replyDurable(conn, rt, q.type, resp, conn.inflight::release);
+            } catch (Exception e) {
+                e.printStackTrace();
+                conn.abort();
+                if (!handedOff) conn.inflight.release();
+            }
+        };
+        if (lane < 0) task.run();
+        else if (lane < PLAYER_LANE) shards.execute((int) lane, task);
+        else lanes.execute(lane, task);
+    }
+
+    /**
+     * 修改成功的响应等 WAL 把它所在的那批 fsync 之后再发（同一批的请求一起放行，不占分片线程）；
+     * 落盘失败就改回错误，内存里已做的修改不再确认。after 在响应发出后执行（释放在途名额）。
+     */
+    private void replyDurable(ClientConn conn, ReqType rt, String type, RespShell resp, Runnable after) throws JsonProcessingException {
+        if (wal == null || !resp.ok || !MUTATING.contains(rt)) {
+            try {
+                reply(conn, type, resp);
+            } finally {
+                if (after != null) after.run();
+            }
+            return;
+        }
+        wal.sync().whenComplete((v, err) -> {
+            try {
+                if (err == null) {
+                    reply(conn, type, resp);
+                } else {
+                    RespShell r = new RespShell();
+                    r.requestId = resp.requestId; r.ok = false; r.msg = "storage unavailable";
+                    reply(conn, type, r);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                conn.abort();
+            } finally {
+                if (after != null) after.run();
+            }
+        });
+    }
+
+    /** 按连接的编码写回响应 */
+    private void reply(ClientConn conn, String type, RespShell resp) throws JsonProcessingException {
+        if (conn.binary) {
+            byte[] frame = BinaryCodec.encodeResp(resp);
+            conn.sendLine(frame);
+            wireLog.send(type, frame);
+        } else {
+            byte[] line = withNewline(respWriter.writeValueAsBytes(resp));
+            conn.sendLine(line);
+            wireLog.send(type, line);
+        }
+    }
+
+    private void sendInfo(ClientConn conn, String msg) {
+        if (conn.binary) {
+            byte[] frame = BinaryCodec.encodeInfo(msg);
+            conn.sendLine(frame);
+            wireLog.send("INFO", frame);
+        } else {
+            String json = "{\"type\":\"INFO\",\"msg\":\"" + msg + "\"}";
+            conn.safeWrite(json);
+            wireLog.send("INFO", json);
+        }
+    }
+
+    /** 连接断开后的清理（在线表 + 观众关系） */
+    void onConnClosed(ClientConn conn) {
+        if (conn.playerId == null) return;
+        int viewerId = conn.playerId;
+        conns.remove(viewerId, conn);
+
+        // 清理观众关系
+        Integer owner = currentViewByViewer.remove(viewerId);
+        if (owner != null) {
+            Set<Integer> vs = viewersByOwner.get(owner);
+            if (vs != null) {
+                vs.remove(viewerId);
+                if (vs.isEmpty()) viewersByOwner.remove(owner);
+            }
+        }
     }
 
     private void bindConn(int playerId, ClientConn conn) {
         // 主人重新上线：重置偷菜状态
         resetStealState(playerId);
 
+        boolean watched = isWatched(playerId);
         ClientConn old = conns.put(playerId, conn);
         conn.playerId = playerId;
+        if (!watched) armRipening(playerId);
         if (old != null) {
-            try {
-                String msg = "{\"type\":\"INFO\",\"msg\":\"relogin\"}";
-                old.out.write(msg); old.out.write("\n"); old.out.flush();
-                System.out.println("[SEND] " + msg);
-            } catch (Exception ignore) {}
-            try { old.socket.close(); } catch (Exception ignore) {}
+            sendInfo(old, "relogin");
+            old.close();
         }
     }
 
@@ -333,21 +898,17 @@ public class Server {
         if (isBlank(username) || isBlank(password)) { r.ok=false; r.msg="bad request"; return r; }
         String key = username.toLowerCase(Locale.ROOT);
 
-        Player created = new Player();
-        created.setId(nextId.getAndIncrement());
-        created.setName(username);
-        created.setCoins(100);
-        try {
-            var pwdField = Player.class.getDeclaredField("password");
-            pwdField.setAccessible(true);
-            pwdField.set(created, password);
-        } catch (Exception ignore) {}
+        int id = nextId.getAndIncrement();
+        if (!CoinLedger.validId(id)) { r.ok=false; r.msg="player limit reached"; return r; }
+        Player created = newPlayer(id, username, password);
 
         Player prev = players.putIfAbsent(key, created);
         if (prev != null) { r.ok=false; r.msg="player exists"; return r; }
+        ledger.reset(created.getId(), 100);
+        if (wal != null) wal.appendSignup(created.getId(), username, password, ledger.balance(created.getId()));
 
         playersById.put(created.getId(), created);
-        farms.putIfAbsent(created.getId(), new Farm());
+        farmOf(created.getId());
         friends.putIfAbsent(created.getId(), ConcurrentHashMap.newKeySet());
 
         savePlayersAsync();
@@ -358,112 +919,208 @@ public class Server {
         return r;
     }
 
-    private RespShell doLogin(String username, String password) {
-        RespShell r = new RespShell();
+    private LoginResp doLogin(String username, String password) {
+        LoginResp r = new LoginResp();
         if (isBlank(username) || isBlank(password)) { r.ok=false; r.msg="bad request"; return r; }
         Player p = players.get(username.toLowerCase(Locale.ROOT));
         if (p == null) { r.ok=false; r.msg="no such player"; return r; }
         if (!p.passwordEquals(password)) { r.ok=false; r.msg="wrong password"; return r; }
-        farms.putIfAbsent(p.getId(), new Farm());
+        farmOf(p.getId());
         friends.putIfAbsent(p.getId(), ConcurrentHashMap.newKeySet());
 
         String session = UUID.randomUUID().toString(); // 先占位（未校验）
         r.ok = true; r.msg="login ok";
         r.playerId = p.getId();
         r.playerName = p.getName();
-        r.coins = p.getCoins();
+        r.coins = ledger.balance(p.getId());
         r.session = session;
 
         // 附带自己的农场快照
-        Farm f = farms.get(p.getId());
-        r.rows = f.rows;
-        r.cols = f.cols;
-        r.cells = farmToCells(f);
+        FarmView v = readView(p.getId(), farms.get(p.getId()));
+        r.rows = v.rows;
+        r.cols = v.cols;
+        r.cells = farmToCells(v);
+        r.version = v.version;
 
         return r;
     }
 
     /** PLANT：广播 GROWING 给所有正在看该农场的人 */
-    private RespShell doPlant(Integer playerId, Integer row, Integer col) {
-        RespShell r = new RespShell();
+    private CellResp doPlant(Integer playerId, Integer row, Integer col) {
+        CellResp r = new CellResp();
         if (playerId==null || row==null || col==null) { r.ok=false; r.msg="bad request"; return r; }
         Player p = playersById.get(playerId);
         if (p == null) { r.ok=false; r.msg="no such player"; return r; }
         Farm f = farms.get(playerId);
         if (f == null) { r.ok=false; r.msg="no farm"; return r; }
 
-        synchronized (f) {
-            if (outOfRange(f, row, col)) { r.ok=false; r.msg="out of range"; return r; }
-            if (f.board[row][col] != PlotState.EMPTY) { r.ok=false; r.msg="plot occupied"; return r; }
-            if (p.getCoins() < 10) { r.ok=false; r.msg="not enough coins"; return r; }
+        if (outOfRange(f, row, col)) { r.ok=false; r.msg="out of range"; return r; }
+        if (f.get(row, col) != PlotState.EMPTY) { r.ok=false; r.msg="plot occupied"; return r; }
+        int coins = ledger.debit(playerId, 10);
+        if (coins < 0) { r.ok=false; r.msg="not enough coins"; return r; }
 
-            p.setCoins(p.getCoins() - 10);
-            f.board[row][col] = PlotState.GROWING;
-            long now = System.currentTimeMillis();
-            long ripetime = now + 5000;
-            f.ripeAt[row][col] = ripetime;
-
-            final int rr=row, cc=col, pid=playerId;
-            scheduler.schedule(() -> {
-                Farm ff = farms.get(pid);
-                Player pp = playersById.get(pid);
-                if (ff == null || pp == null) return;
-                synchronized (ff) {
-                    if (ff.board[rr][cc] == PlotState.GROWING) {
-                        ff.board[rr][cc] = PlotState.RIPE;
-                        ff.ripeAt[rr][cc] = null;
-                        broadcastFarmUpdate(pid, new PushCellUpdate(pid, rr, cc, PlotState.RIPE, pp.getCoins()));
-                        saveFarmsAsync();
-                    }
-                }
-            }, ripetime - now, TimeUnit.MILLISECONDS);
+        long now = System.currentTimeMillis();
+        long ripetime = now + 5000;
+        f.set(row, col, PlotState.GROWING, ripetime);
+        if (!LAZY_RIPENING || isWatched(playerId)) scheduleRipen(playerId, f, row, col, ripetime);
 
-            savePlayersAsync();
-            saveFarmsAsync();
+        logCell(playerId, f, row, col);
+        logCoins(playerId);
+        savePlayersAsync();
+        saveFarmsAsync();
 
-            // 立刻广播 GROWING
-            broadcastFarmUpdate(playerId,
-                    new PushCellUpdate(playerId, row, col, PlotState.GROWING, p.getCoins()));
+        // 立刻广播 GROWING
+        broadcastFarmUpdate(playerId,
+                new PushCellUpdate(playerId, row, col, PlotState.GROWING, coins));
 
-            r.ok = true; r.msg="plant ok";
-            r.playerId = playerId; r.row=row; r.col=col;
-            r.plotState=PlotState.GROWING.name(); r.coins=p.getCoins();
-            return r;
-        }
+        r.ok = true; r.msg="plant ok";
+        r.playerId = playerId; r.row=row; r.col=col;
+        r.plotState=PlotState.GROWING.name(); r.coins=coins;
+        return r;
     }
 
-    private RespShell doHarvest(Integer playerId, Integer row, Integer col) {
-        RespShell r = new RespShell();
+    private CellResp doHarvest(Integer playerId, Integer row, Integer col) {
+        CellResp r = new CellResp();
         if (playerId==null || row==null || col==null) { r.ok=false; r.msg="bad request"; return r; }
         Player p = playersById.get(playerId);
         if (p == null) { r.ok=false; r.msg="no such player"; return r; }
         Farm f = farms.get(playerId);
         if (f == null) { r.ok=false; r.msg="no farm"; return r; }
 
-        synchronized (f) {
-            if (outOfRange(f, row, col)) { r.ok=false; r.msg="out of range"; return r; }
-            if (f.board[row][col] != PlotState.RIPE) { r.ok=false; r.msg="not ripe"; return r; }
+        if (outOfRange(f, row, col)) { r.ok=false; r.msg="out of range"; return r; }
+        settleFarm(playerId, f);
+        if (f.get(row, col) != PlotState.RIPE) { r.ok=false; r.msg="not ripe"; return r; }
 
-            f.board[row][col] = PlotState.EMPTY;
-            f.ripeAt[row][col] = null;
-            p.setCoins(p.getCoins() + 20);
+        f.set(row, col, PlotState.EMPTY);
+        int coins = ledger.credit(playerId, 20);
+        logCell(playerId, f, row, col);
+        logCoins(playerId);
 
-            // 如果没有任何 RIPE 了，重置偷菜配额
-            if (countRipe(f) == 0) {
-                resetStealState(playerId);
-            }
+        // 成熟块收到不足 4 块时整块农场不能再偷，这一轮结束，重置偷菜配额
+        // （原来由之后的 VISIT_FARM 在成熟数 < 4 时清零；配额检查改成只读后在这里清）
+        if (f.countRipe() < 4) {
+            f.resetStealQuota();
+        }
 
-            savePlayersAsync();
-            saveFarmsAsync();
+        savePlayersAsync();
+        saveFarmsAsync();
 
-            r.ok = true; r.msg="harvest ok";
-            r.playerId=playerId; r.row=row; r.col=col;
-            r.plotState=PlotState.EMPTY.name(); r.coins=p.getCoins();
+        r.ok = true; r.msg="harvest ok";
+        r.playerId=playerId; r.row=row; r.col=col;
+        r.plotState=PlotState.EMPTY.name(); r.coins=coins;
 
-            broadcastFarmUpdate(playerId,
-                    new PushCellUpdate(playerId, row, col, PlotState.EMPTY, p.getCoins()));
-            return r;
+        broadcastFarmUpdate(playerId,
+                new PushCellUpdate(playerId, row, col, PlotState.EMPTY, coins));
+        return r;
+    }
+
+    // ===== 批量种植 / 收获 =====
+    /**
+     * PLANT_ALL：一次种下列出的格子（全部空着、金币够才执行）；
+     * 不带 cells 时把空地按顺序种到金币用完为止。整批只落一次盘、推一次整块快照。
+     */
+    private BatchResp doPlantAll(Integer playerId, int[] cells) {
+        BatchResp r = new BatchResp();
+        if (playerId == null) { r.ok=false; r.msg="bad request"; return r; }
+        Player p = playersById.get(playerId);
+        if (p == null) { r.ok=false; r.msg="no such player"; return r; }
+        Farm f = farms.get(playerId);
+        if (f == null) { r.ok=false; r.msg="no farm"; return r; }
+
+        int[] picked = pickCells(f, cells, PlotState.EMPTY, r, "plot occupied");
+        if (picked == null) return r;
+        int n = picked.length;
+        if (cells == null) n = Math.min(n, ledger.balance(playerId) / 10);
+        if (n == 0) { r.ok=false; r.msg = picked.length == 0 ? "no empty plots" : "not enough coins"; return r; }
+        int coins = ledger.debit(playerId, 10 * n);
+        if (coins < 0) { r.ok=false; r.msg="not enough coins"; return r; }
+
+        long ripetime = System.currentTimeMillis() + 5000;
+        boolean arm = !LAZY_RIPENING || isWatched(playerId);
+        for (int k = 0; k < n; k++) {
+            int row = picked[k] / f.cols, col = picked[k] % f.cols;
+            f.set(row, col, PlotState.GROWING, ripetime);
+            if (arm) scheduleRipen(playerId, f, row, col, ripetime);
+        }
+        commitBatch(playerId, f, picked, n, coins);
+
+        r.ok = true; r.msg = "plant all ok";
+        r.playerId = playerId; r.count = n; r.coins = coins;
+        return r;
+    }
+
+    /** HARVEST_ALL：一次收获列出的格子（必须全部成熟）；不带 cells 时收获所有成熟的格子 */
+    private BatchResp doHarvestAll(Integer playerId, int[] cells) {
+        BatchResp r = new BatchResp();
+        if (playerId == null) { r.ok=false; r.msg="bad request"; return r; }
+        Player p = playersById.get(playerId);
+        if (p == null) { r.ok=false; r.msg="no such player"; return r; }
+        Farm f = farms.get(playerId);
+        if (f == null) { r.ok=false; r.msg="no farm"; return r; }
+
+        settleFarm(playerId, f);
+        int[] picked = pickCells(f, cells, PlotState.RIPE, r, "not ripe");
+        if (picked == null) return r;
+        int n = picked.length;
+        if (n == 0) { r.ok=false; r.msg="no ripe plots"; return r; }
+
+        for (int i : picked) f.set(i / f.cols, i % f.cols, PlotState.EMPTY);
+        int coins = ledger.credit(playerId, 20 * n);
+        if (f.countRipe() < 4) f.resetStealQuota(); // 同 doHarvest
+        commitBatch(playerId, f, picked, n, coins);
+
+        r.ok = true; r.msg = "harvest all ok";
+        r.playerId = playerId; r.count = n; r.coins = coins;
+        return r;
+    }
+
+    /**
+     * 批量操作的格子（下标，行优先）：cells 为 null 时取所有 want 状态的格子；
+     * 否则按列出的顺序去重，有越界或状态不是 want 的格子时把错误写进 r 并返回 null。在农场的分片线程上调用。
+     */
+    private static int[] pickCells(Farm f, int[] cells, PlotState want, RespShell r, String wrongState) {
+        int total = f.rows * f.cols;
+        if (cells == null) {
+            int[] out = new int[total];
+            int n = 0;
+            for (int i = 0; i < total; i++) {
+                if (f.get(i / f.cols, i % f.cols) == want) out[n++] = i;
+            }
+            return Arrays.copyOf(out, n);
         }
+        boolean[] seen = new boolean[total];
+        int[] out = new int[Math.min(cells.length, total)];
+        int n = 0;
+        for (int i : cells) {
+            if (i < 0 || i >= total) { r.ok=false; r.msg="out of range"; return null; }
+            if (seen[i]) continue;
+            seen[i] = true;
+            if (f.get(i / f.cols, i % f.cols) != want) { r.ok=false; r.msg=wrongState; return null; }
+            out[n++] = i;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /** 批量修改的收尾：一条 WAL 记录（或一次写回标记），整批进同一条 PUSH_FARM_DELTA。在农场的分片线程上调用 */
+    private void commitBatch(int pid, Farm f, int[] picked, int n, int coins) {
+        if (wal != null) {
+            int[] states = new int[n];
+            long[] ripe = new long[n];
+            for (int k = 0; k < n; k++) {
+                int row = picked[k] / f.cols, col = picked[k] % f.cols;
+                states[k] = f.get(row, col).ordinal();
+                ripe[k] = f.ripeAt(row, col);
+            }
+            wal.appendCells(pid, () -> ledger.balance(pid), f.cols, picked, n, states, ripe);
+        }
+        savePlayersAsync();
+        saveFarmsAsync();
+        List<PushCellUpdate> updates = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) {
+            int row = picked[k] / f.cols, col = picked[k] % f.cols;
+            updates.add(new PushCellUpdate(pid, row, col, f.get(row, col), coins));
+        }
+        broadcastFarmUpdates(pid, updates);
     }
 
     // ===== 好友逻辑 =====
@@ -474,8 +1131,8 @@ public class Server {
         public FriendInfo(int id, String name) { this.id = id; this.name = name; }
     }
 
-    private RespShell doAddFriend(Integer playerId, Integer targetId) {
-        RespShell r = new RespShell();
+    private FriendResp doAddFriend(Integer playerId, Integer targetId) {
+        FriendResp r = new FriendResp();
         if (playerId == null || targetId == null) { r.ok=false; r.msg="bad request"; return r; }
         if (Objects.equals(playerId, targetId)) {
             r.ok=false; r.msg="cannot add yourself"; return r;
@@ -496,6 +1153,7 @@ public class Server {
 
         mySet.add(targetId);
         hisSet.add(playerId);
+        if (wal != null) wal.appendFriend(playerId, targetId);
         saveFriendsAsync();
 
         r.ok = true; r.msg="add friend ok";
@@ -505,8 +1163,8 @@ public class Server {
         return r;
     }
 
-    private RespShell doListFriends(Integer playerId) {
-        RespShell r = new RespShell();
+    private FriendListResp doListFriends(Integer playerId) {
+        FriendListResp r = new FriendListResp();
         if (playerId == null) { r.ok=false; r.msg="bad request"; return r; }
         Player me = playersById.get(playerId);
         if (me == null) { r.ok=false; r.msg="no such player"; return r; }
@@ -526,8 +1184,8 @@ public class Server {
     }
 
     // ===== 访问农场逻辑 =====
-    private RespShell doVisitFarm(Integer playerId, Integer targetId) {
-        RespShell r = new RespShell();
+    private VisitResp doVisitFarm(Integer playerId, Integer targetId, Long knownVersion) {
+        VisitResp r = new VisitResp();
         if (playerId == null || targetId == null) { r.ok=false; r.msg="bad request"; return r; }
         Player viewer = playersById.get(playerId);
         Player owner  = playersById.get(targetId);
@@ -541,27 +1199,43 @@ public class Server {
             }
         }
 
-        farms.putIfAbsent(targetId, new Farm());
-        Farm f = farms.get(targetId);
+        Farm f = farmOf(targetId);
 
         r.ok = true; r.msg = "visit ok";
         r.playerId = playerId;
         r.targetId = targetId;
         r.targetName = owner.getName();
 
+        // 格子、版本号、变化环和偷菜额度用的成熟数都取自同一份只读副本
+        FarmView v = readView(targetId, f);
+
         boolean online = conns.containsKey(targetId);
         r.ownerOnline = online;
         // 有偷菜额度：必须离线且 hasStealQuota 返回 true
-        r.canSteal = !online && hasStealQuota(targetId);
+        r.canSteal = !online && f.hasStealQuota(v.countRipe());
 
         if (Objects.equals(playerId, targetId)) {
-            r.coins = viewer.getCoins(); // 回到自己农场时返回自己的金币
+            r.coins = ledger.balance(playerId); // 回到自己农场时返回自己的金币
+        }
+        r.version = v.version;
+        int[] changed = knownVersion == null || v.projected ? null : v.changedSince(knownVersion);
+        if (changed == null) {
+            r.sync = "FULL";
+            r.rows = v.rows;
+            r.cols = v.cols;
+            r.cells = farmToCells(v);
+        } else if (changed.length == 0) {
+            r.sync = "UNCHANGED";
+        } else {
+            r.sync = "DELTA";
+            r.deltaCells = changed;
+            char[] st = new char[changed.length];
+            for (int k = 0; k < st.length; k++) st[k] = CELL_CHARS.charAt(v.stateAt(changed[k]));
+            r.deltaStates = new String(st);
         }
-        r.rows = f.rows;
-        r.cols = f.cols;
-        r.cells = farmToCells(f);
 
         // 更新“谁在看谁”
+        boolean watched = isWatched(targetId);
         Integer oldOwner = currentViewByViewer.put(playerId, targetId);
         if (oldOwner != null && !oldOwner.equals(targetId)) {
             Set<Integer> vs = viewersByOwner.get(oldOwner);
@@ -574,23 +1248,21 @@ public class Server {
             viewersByOwner
                     .computeIfAbsent(targetId, k -> ConcurrentHashMap.newKeySet())
                     .add(playerId);
+            if (!watched) armRipening(targetId);
         }
         return r;
     }
 
-    private List<String> farmToCells(Farm f) {
-        List<String> list = new ArrayList<>(f.rows * f.cols);
-        for (int r=0;r<f.rows;r++) {
-            for (int c=0;c<f.cols;c++) {
-                list.add(f.board[r][c].name());
-            }
-        }
-        return list;
+    /** 格子状态的紧凑文本：每格一个字符（E/G/R，即 PlotState 名字首字母），行优先 */
+    private String farmToCells(FarmCells f) {
+        char[] out = new char[f.rows * f.cols];
+        for (int i = 0; i < out.length; i++) out[i] = CELL_CHARS.charAt(f.stateAt(i));
+        return new String(out);
     }
 
     // ===== 偷菜逻辑（<4 不能偷 + 上线重置配额） =====
-    private RespShell doSteal(Integer thiefId, Integer ownerId, Integer row, Integer col) {
-        RespShell r = new RespShell();
+    private StealResp doSteal(Integer thiefId, Integer ownerId, Integer row, Integer col) {
+        StealResp r = new StealResp();
         if (thiefId == null || ownerId == null || row == null || col == null) {
             r.ok = false; r.msg = "bad request"; return r;
         }
@@ -615,187 +1287,424 @@ public class Server {
             r.ok = false; r.msg = "owner online, cannot steal"; return r;
         }
 
-        farms.putIfAbsent(ownerId, new Farm());
-        Farm f = farms.get(ownerId);
+        Farm f = farmOf(ownerId);
 
-        synchronized (f) {
-            if (outOfRange(f, row, col)) {
-                r.ok = false; r.msg = "out of range"; return r;
-            }
+        if (outOfRange(f, row, col)) {
+            r.ok = false; r.msg = "out of range"; return r;
+        }
+        settleFarm(ownerId, f);
 
-            int ripeCount = countRipe(f);
-            if (ripeCount == 0) {
-                // 没有成熟的地块，重置偷菜状态
-                resetStealState(ownerId);
-                r.ok = false; r.msg = "no ripe plots to steal"; return r;
-            }
+        int ripeCount = f.countRipe();
+        if (ripeCount == 0) {
+            // 没有成熟的地块，重置偷菜状态
+            f.resetStealQuota();
+            r.ok = false; r.msg = "no ripe plots to steal"; return r;
+        }
 
-            // 新规则：成熟地块 < 4 时，整块农场不能被偷
-            if (ripeCount < 4) {
-                resetStealState(ownerId); // 保守起见清空一下状态
-                r.ok = false; r.msg = "not enough ripe plots to steal (need at least 4)"; return r;
-            }
+        // 新规则：成熟地块 < 4 时，整块农场不能被偷
+        if (ripeCount < 4) {
+            f.resetStealQuota(); // 保守起见清空一下状态
+            r.ok = false; r.msg = "not enough ripe plots to steal (need at least 4)"; return r;
+        }
 
-            Integer baseline = baselineRipe.get(ownerId);
-            Integer allowed  = allowedSteals.get(ownerId);
-            Integer stolen   = stolenSoFar.get(ownerId);
-
-            // 这一轮第一次偷：以当前 ripeCount 作为基准
-            if (baseline == null || allowed == null || stolen == null) {
-                baseline = ripeCount;
-                // allowed = floor(baseline * 25%)，baseline>=4 时至少 1
-                allowed = baseline / 4;
-                if (allowed <= 0) {
-                    // 理论上不会触发（前面已经保证 ripeCount>=4），防御一下
-                    r.ok = false; r.msg = "not enough ripe plots to steal"; return r;
-                }
-                stolen = 0;
-                baselineRipe.put(ownerId, baseline);
-                allowedSteals.put(ownerId, allowed);
-                stolenSoFar.put(ownerId, stolen);
-            }
+        if (!f.hasStealQuota(ripeCount)) {
+            r.ok = false; r.msg = "farm already stolen up to 25%"; return r;
+        }
 
-            if (stolen >= allowed) {
-                r.ok = false; r.msg = "farm already stolen up to 25%"; return r;
-            }
+        if (f.get(row, col) != PlotState.RIPE) {
+            r.ok = false; r.msg = "this plot is not ripe"; return r;
+        }
 
-            if (f.board[row][col] != PlotState.RIPE) {
-                r.ok = false; r.msg = "this plot is not ripe"; return r;
-            }
+        // 这一轮第一次偷时以当前 ripeCount 作为基准：可偷 floor(ripeCount * 25%) 块（ripeCount>=4 时至少 1）
+        if (!f.tryTakeSteal(ripeCount)) {
+            r.ok = false; r.msg = "farm already stolen up to 25%"; return r;
+        }
 
-            // 真正偷：把该格子从 RIPE -> EMPTY
-            f.board[row][col] = PlotState.EMPTY;
-            f.ripeAt[row][col] = null;
+        // 真正偷：把该格子从 RIPE -> EMPTY
+        f.set(row, col, PlotState.EMPTY);
 
-            // 简单设定：偷一块地就获得 20 金币，对方损失 20 金币
-            thief.setCoins(thief.getCoins() + 20);
-            owner.setCoins(Math.max(0, owner.getCoins() - 20));
+        // 简单设定：偷一块地就获得 20 金币，对方损失 20 金币（不够 20 时扣到 0，差额由系统补给盗贼）
+        int moved = ledger.transfer(ownerId, thiefId, 20);
+        int thiefCoins = moved < 20 ? ledger.credit(thiefId, 20 - moved) : ledger.balance(thiefId);
+        int ownerCoins = ledger.balance(ownerId);
+        logCell(ownerId, f, row, col);
+        logCoins(thiefId);
+        logCoins(ownerId);
 
-            stolen = stolen + 1;
-            stolenSoFar.put(ownerId, stolen);
+        // 剩下的成熟块不到 4 块时整块农场不能再偷，认为这一轮结束，重置偷菜状态
+        int ripeLeft = f.countRipe();
+        if (ripeLeft < 4) f.resetStealQuota();
 
-            // 如果这个农场再也没有 RIPE 了，认为这一轮结束，重置偷菜状态
-            if (countRipe(f) == 0) {
-                resetStealState(ownerId);
+        savePlayersAsync();
+        saveFarmsAsync();
+
+        // 响应：返回盗贼自己的金币
+        r.ok = true; r.msg = "steal ok";
+        r.playerId = thiefId;
+        r.targetId = ownerId;
+        r.row = row; r.col = col;
+        r.plotState = PlotState.EMPTY.name();
+        r.coins = thiefCoins;
+        r.ownerCoins = ownerCoins;
+
+        // 偷完之后这一轮是否还可继续偷
+        r.canSteal = f.hasStealQuota(ripeLeft);
+
+        // 广播这块地变 EMPTY 给所有正在看该农场的人
+        broadcastFarmUpdate(ownerId,
+                new PushCellUpdate(ownerId, row, col, PlotState.EMPTY, ownerCoins));
+
+        return r;
+    }
+
+    private void resetStealState(int ownerId) {
+        Farm f = farms.get(ownerId);
+        if (f != null) f.resetStealQuota();
+    }
+
+    // ===== 成熟调度 =====
+    /** 登记到时间轮，O(1)；到点由 ripenDue 批量处理 */
+    private void scheduleRipen(int pid, FarmCells f, int row, int col, long ripeAt) {
+        ripening.schedule(pid, row * f.cols + col, ripeAt);
+    }
+
+    /**
+     * 时间轮回调：一块农场本 tick 到期的所有格子，作为一个任务投进农场的分片，一次广播。
+     * 格子已被收获/偷走，或被重新种下（ripeAt 更晚）的，跳过。cells 由时间轮复用，先复制一份。
+     */
+    private void ripenDue(int pid, int[] cells, int count) {
+        Farm f = farms.get(pid);
+        if (f == null) return;
+        int[] due = Arrays.copyOf(cells, count);
+        onFarmAsync(pid, () -> {
+            long now = System.currentTimeMillis();
+            List<PushCellUpdate> updates = new ArrayList<>(due.length);
+            for (int i : due) {
+                int row = i / f.cols, col = i % f.cols;
+                if (!outOfRange(f, row, col)) ripenIfDue(pid, f, row, col, now, updates);
             }
+            publishRipened(pid, updates);
+        });
+    }
 
-            savePlayersAsync();
-            saveFarmsAsync();
-
-            // 响应：返回盗贼自己的金币
-            r.ok = true; r.msg = "steal ok";
-            r.playerId = thiefId;
-            r.targetId = ownerId;
-            r.row = row; r.col = col;
-            r.plotState = PlotState.EMPTY.name();
-            r.coins = thief.getCoins();
-            r.ownerCoins = owner.getCoins();
-
-            // 偷完之后这一轮是否还可继续偷
-            Integer a2 = allowedSteals.get(ownerId);
-            Integer s2 = stolenSoFar.get(ownerId);
-            boolean canStealMore = false;
-            if (a2 != null && s2 != null) {
-                canStealMore = s2 < a2;
+    /** 写格子前调用：把已到成熟时间的 GROWING 记为 RIPE 并广播；在农场的分片线程上调用 */
+    private void settleFarm(int pid, Farm f) {
+        if (!f.hasGrowing()) return;
+        long now = System.currentTimeMillis();
+        List<PushCellUpdate> updates = new ArrayList<>();
+        for (int r = 0; r < f.rows; r++) {
+            for (int c = 0; c < f.cols; c++) {
+                ripenIfDue(pid, f, r, c, now, updates);
             }
-            r.canSteal = canStealMore;
+        }
+        publishRipened(pid, updates);
+    }
 
-            // 广播这块地变 EMPTY 给所有正在看该农场的人
-            broadcastFarmUpdate(ownerId,
-                    new PushCellUpdate(ownerId, row, col, PlotState.EMPTY, owner.getCoins()));
+    private void ripenIfDue(int pid, Farm f, int row, int col, long now, List<PushCellUpdate> updates) {
+        if (f.get(row, col) != PlotState.GROWING || f.ripeAt(row, col) > now) return;
+        f.set(row, col, PlotState.RIPE);
+        logCell(pid, f, row, col);
+        updates.add(new PushCellUpdate(pid, row, col, PlotState.RIPE, ledger.balance(pid)));
+    }
 
-            return r;
-        }
+    private void publishRipened(int pid, List<PushCellUpdate> updates) {
+        if (updates.isEmpty()) return;
+        broadcastFarmUpdates(pid, updates);
+        saveFarmsAsync();
+    }
+
+    /**
+     * 读者用的只读副本（登录 / 访问），从不等分片：副本里有已到成熟时间、写者还没结算的格子时，
+     * 返回把它们看作 RIPE 的推算副本，同时投一个结算任务给分片（结算后照常写 WAL、推送增量）。
+     * 平时（timer 模式下时间轮已经按时结算）直接返回最近发布的副本。
+     */
+    private FarmView readView(int pid, Farm f) {
+        FarmView v = f.view;
+        long now = System.currentTimeMillis();
+        if (v.nextRipe > now) return v;
+        onFarmAsync(pid, () -> settleFarm(pid, f));
+        return v.ripenedAt(now);
+    }
+
+    /** 农场主在线，或者有人正在看 */
+    private boolean isWatched(int ownerId) {
+        if (conns.containsKey(ownerId)) return true;
+        Set<Integer> vs = viewersByOwner.get(ownerId);
+        return vs != null && !vs.isEmpty();
     }
 
-    private int countRipe(Farm f) {
-        int cnt = 0;
-        for (int r=0;r<f.rows;r++) {
-            for (int c=0;c<f.cols;c++) {
-                if (f.board[r][c] == PlotState.RIPE) cnt++;
+    /** lazy 模式下农场从“没人看”变成“有人看”：把生长中的格子登记进时间轮，好按时推送 */
+    private void armRipening(int pid) {
+        if (!LAZY_RIPENING) return;
+        Farm f = farms.get(pid);
+        if (f == null) return;
+        FarmView v = f.view;
+        if (!v.hasGrowing()) return;
+        for (int r = 0; r < v.rows; r++) {
+            for (int c = 0; c < v.cols; c++) {
+                if (v.get(r, c) == PlotState.GROWING) scheduleRipen(pid, v, r, c, v.ripeAt(r, c));
             }
         }
-        return cnt;
     }
 
-    private void resetStealState(int ownerId) {
-        baselineRipe.remove(ownerId);
-        allowedSteals.remove(ownerId);
-        stolenSoFar.remove(ownerId);
+    // ===== 推送 & 广播 =====
+    /** 广播某个农场的单格更新：推给 owner + 所有正在看他农场的观众 */
+    private void broadcastFarmUpdate(int ownerId, PushCellUpdate payload) {
+        broadcastFarmUpdates(ownerId, List.of(payload));
     }
 
-    /** 是否还有偷菜额度（仅用来给 VISIT_FARM 返回 canSteal，用不到 baseline 的初始化） */
-    private boolean hasStealQuota(int ownerId) {
+    /** 一块农场在合并窗口内还没推出去的格子更新：每格只留最新状态（也就是该格的当前状态） */
+    private static final class PendingDelta {
+        final ReentrantLock lock = new ReentrantLock();
+        /** 格子下标 -> 状态，按首次变化的顺序 */
+        final Map<Integer, PlotState> cells = new LinkedHashMap<>();
+        int coins;
+        long since, version;
+        boolean scheduled;
+    }
+
+    /** ownerId -> 合并缓冲（农场第一次有更新时创建，之后复用） */
+    private final Map<Integer, PendingDelta> pendingDeltas = new ConcurrentHashMap<>();
+
+    /**
+     * 同一农场的一批更新：先并进该农场的缓冲，窗口（farm.push.windowMs）到了再整体推一条 PUSH_FARM_DELTA。
+     * 在农场的分片线程上调用，所以缓冲里的顺序就是修改顺序。
+     */
+    private void broadcastFarmUpdates(int ownerId, List<PushCellUpdate> payloads) {
+        if (payloads.isEmpty()) return;
         Farm f = farms.get(ownerId);
-        if (f == null) return false;
-        synchronized (f) {
-            int ripe = countRipe(f);
-            if (ripe < 4) {
-                // 成熟数 < 4，一律不能偷，同时重置状态
-                resetStealState(ownerId);
-                return false;
+        if (f == null) return;
+        PendingDelta d = pendingDeltas.computeIfAbsent(ownerId, k -> new PendingDelta());
+        boolean flushNow = false;
+        d.lock.lock();
+        try {
+            // 每条更新恰好对应一次 Farm.set，所以这批更新之前的版本是 version - size
+            if (d.cells.isEmpty()) d.since = f.version - payloads.size();
+            d.version = f.version;
+            for (PushCellUpdate u : payloads) {
+                d.cells.put(u.row * f.cols + u.col, PlotState.valueOf(u.plotState));
             }
-            Integer baseline = baselineRipe.get(ownerId);
-            Integer allowed  = allowedSteals.get(ownerId);
-            Integer stolen   = stolenSoFar.get(ownerId);
-            if (baseline == null || allowed == null || stolen == null) {
-                // 这一轮还没开始偷，但 ripe>=4，可以开始偷
-                return true;
+            d.coins = payloads.get(payloads.size() - 1).coins;
+            if (PUSH_WINDOW_MS <= 0) {
+                flushNow = true;
+            } else if (!d.scheduled) {
+                d.scheduled = true;
+                scheduler.schedule(() -> flushDelta(ownerId), PUSH_WINDOW_MS, TimeUnit.MILLISECONDS);
             }
-            return stolen < allowed;
+        } finally {
+            d.lock.unlock();
         }
+        if (flushNow) flushDelta(ownerId);
     }
 
-    // ===== 推送 & 广播 =====
-    private void pushTo(int playerId, Object payload) {
+    /**
+     * 把攒下的更新作为一条 PUSH_FARM_DELTA 推给 owner + 观众。
+     * 每种编码只序列化一次，字节数组被所有接收者共享；在缓冲锁内入队，同一农场的推送不会乱序。
+     */
+    private void flushDelta(int ownerId) {
+        PendingDelta d = pendingDeltas.get(ownerId);
+        if (d == null) return;
+        d.lock.lock();
+        try {
+            d.scheduled = false;
+            if (d.cells.isEmpty()) return;
+            PushFarmDelta delta = new PushFarmDelta();
+            delta.playerId = ownerId;
+            delta.cells = new int[d.cells.size()];
+            char[] states = new char[delta.cells.length];
+            int k = 0;
+            for (Map.Entry<Integer, PlotState> e : d.cells.entrySet()) {
+                delta.cells[k] = e.getKey();
+                states[k++] = CELL_CHARS.charAt(e.getValue().ordinal());
+            }
+            delta.states = new String(states);
+            delta.coins = d.coins;
+            delta.since = d.since;
+            delta.version = d.version;
+            d.cells.clear();
+
+            byte[][] encoded = new byte[2][]; // [JSON 行, 二进制帧]
+            pushDelta(ownerId, delta, encoded);
+            Set<Integer> vs = viewersByOwner.get(ownerId);
+            if (vs != null) {
+                for (Integer vid : vs) {
+                    if (vid == null || vid == ownerId) continue;
+                    pushDelta(vid, delta, encoded);
+                }
+            }
+        } finally {
+            d.lock.unlock();
+        }
+    }
+
+    /** 只入队，不碰 socket */
+    private void pushDelta(int playerId, PushFarmDelta delta, byte[][] encoded) {
         ClientConn cc = conns.get(playerId);
         if (cc == null) return;
+        int k = cc.binary ? 1 : 0;
+        if (encoded[k] == null) {
+            try {
+                encoded[k] = cc.binary ? BinaryCodec.encodeDelta(delta) : encodeLine(delta);
+            } catch (JsonProcessingException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        cc.sendPush(encoded[k], delta.playerId, Outbox.MULTI_CELL);
+        wireLog.push(delta.type, playerId, encoded[k]);
+    }
+
+    /** 发送队列溢出合并后，由写线程在真正发送时生成最新的整块快照 */
+    private byte[] farmSnapshotLine(int ownerId, boolean binary) {
+        Farm f = farms.get(ownerId);
+        if (f == null) return null;
+        // 写线程上不进分片：直接取最近发布的副本（有人在看的农场都在时间轮上，成熟会按时推送）
+        FarmView v = f.view;
+        PushFarmSnapshot snap = new PushFarmSnapshot();
+        snap.playerId = ownerId;
+        snap.rows = v.rows;
+        snap.cols = v.cols;
+        snap.cells = farmToCells(v);
+        snap.version = v.version;
+        snap.coins = ledger.balance(ownerId);
         try {
-            String line = mapper.writeValueAsString(payload);
-            cc.safeWrite(line);
-            System.out.println("[PUSH] to " + playerId + " " + line);
+            byte[] line = binary ? BinaryCodec.encodeSnapshot(snap) : encodeLine(snap);
+            wireLog.push(snap.type, -1, line);
+            return line;
         } catch (JsonProcessingException e) {
             e.printStackTrace();
+            return null;
         }
     }
 
-    /** 广播某个农场的单格更新：推给 owner + 所有正在看他农场的观众 */
-    private void broadcastFarmUpdate(int ownerId, Object payload) {
-        pushTo(ownerId, payload);
-        Set<Integer> vs = viewersByOwner.get(ownerId);
-        if (vs != null) {
-            for (Integer vid : vs) {
-                if (vid == null || vid == ownerId) continue;
-                pushTo(vid, payload);
-            }
+    /** 定期打印发送队列统计：只打此刻有积压、或自上次报告以来又丢弃 / 合并过推送的连接 */
+    private void logBacklog() {
+        for (Map.Entry<Integer, ClientConn> e : conns.entrySet()) {
+            Outbox ob = e.getValue().outbox;
+            if (ob.reportDue()) System.out.println("[OUTQ] player=" + e.getKey() + " " + ob.stats());
         }
     }
 
+    /** JSON + '\n'，UTF-8 */
+    private byte[] encodeLine(Object payload) throws JsonProcessingException {
+        return withNewline(mapper.writeValueAsBytes(payload));
+    }
+
+    private static byte[] withNewline(byte[] json) {
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        return line;
+    }
+
     // ===== IO & 工具 =====
-    private static class ClientConn {
-        final Socket socket;
-        final BufferedWriter out;
-        final Object writeLock = new Object();
+    /** 一条客户端长连（与具体传输方式无关） */
+    abstract static class ClientConn {
         volatile Integer playerId;
-
-        ClientConn(Socket socket, BufferedWriter out) {
-            this.socket = socket; this.out = out;
+        /** 连接的编码：首字节协商后确定，true 为二进制帧（BinaryCodec），否则 JSON 行 */
+        volatile boolean binary;
+        /** 有界发送队列；所有写都只入队，由 {@link #requestWrite()} 唤醒的写者发送 */
+        final Outbox outbox;
+        /** 每条连接可同时交给执行道的请求数（-Dfarm.pipeline.max） */
+        final Semaphore inflight = new Semaphore(Math.max(1, PIPELINE_MAX));
+
+        ClientConn(Server server) {
+            this.outbox = new Outbox(OUT_CAPACITY, OUT_POLICY, owner -> server.farmSnapshotLine(owner, binary));
         }
+
+        /** 写一行 JSON（自动补 '\n'）；不阻塞 */
         void safeWrite(String jsonLine) {
-            synchronized (writeLock) {
-                try { out.write(jsonLine); out.write("\n"); out.flush(); }
-                catch (IOException e) { /* 写失败由上层清理 */ }
+            sendLine((jsonLine + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        /** 响应 / 控制消息（JSON 行以 '\n' 结尾，或完整的二进制帧）；数组可能被多个连接共享，不能修改 */
+        void sendLine(byte[] line) {
+            if (outbox.offer(line)) requestWrite();
+            else overflow();
+        }
+        /** 格子推送：队列满时按溢出策略丢弃 / 合并 / 断开 */
+        void sendPush(byte[] line, int ownerId, int cell) {
+            if (outbox.offerPush(line, ownerId, cell)) requestWrite();
+            else overflow();
+        }
+        private void overflow() {
+            System.out.println("[OUTQ] player=" + playerId + " overflow, disconnecting " + outbox.stats());
+            abort();
+        }
+        /** 占一个流水线名额；拿不到时返回 false，该请求直接回错误（NIO 的 IO 线程不能阻塞） */
+        boolean acquireSlot() {
+            return inflight.tryAcquire();
+        }
+        /** 确保有写者在排空发送队列 */
+        abstract void requestWrite();
+        /** 关闭连接；已排队的数据尽量先发出去 */
+        abstract void close();
+        /** 立即断开，丢弃未发送的数据 */
+        abstract void abort();
+    }
+
+    /** 阻塞 IO：一个 Socket + 一个读线程；写由按需提交到线程池的写任务完成 */
+    private static class SocketConn extends ClientConn {
+        final Socket socket;
+        final OutputStream out;
+        final Executor writers;
+        final AtomicBoolean writeScheduled = new AtomicBoolean();
+        volatile boolean closeRequested;
+
+        SocketConn(Server server, Socket socket, OutputStream out, Executor writers) {
+            super(server);
+            this.socket = socket; this.out = out; this.writers = writers;
+        }
+        /** 读线程直接等名额：客户端流水线太深时停止读，由 TCP 反压 */
+        @Override
+        boolean acquireSlot() {
+            inflight.acquireUninterruptibly();
+            return true;
+        }
+        @Override
+        void requestWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                try { writers.execute(this::drain); }
+                catch (RejectedExecutionException e) { writeScheduled.set(false); }
+            }
+        }
+        /** 同一时刻只有一个写任务；队列写空后 flush 一次 */
+        private void drain() {
+            try {
+                while (true) {
+                    byte[] line;
+                    while ((line = outbox.poll()) != null) out.write(line);
+                    out.flush();
+                    writeScheduled.set(false);
+                    // 复查：防止生产者在我们清标志前入队却没触发调度
+                    if (outbox.isEmpty() || !writeScheduled.compareAndSet(false, true)) break;
+                }
+                if (closeRequested && outbox.isEmpty()) abort();
+            } catch (IOException e) {
+                abort(); // 读线程随之退出并清理
             }
         }
+        @Override
+        void close() {
+            closeRequested = true;
+            if (writeScheduled.compareAndSet(false, true)) {
+                try { writers.execute(this::drain); }
+                catch (RejectedExecutionException e) { abort(); }
+            }
+        }
+        @Override
+        void abort() {
+            outbox.clear();
+            try { socket.close(); } catch (Exception ignore) {}
+        }
     }
 
-    private static boolean outOfRange(Farm f, int r, int c) {
+    private static boolean outOfRange(FarmCells f, int r, int c) {
         return r < 0 || r >= f.rows || c < 0 || c >= f.cols;
     }
+    /** 余额另由调用方记进 ledger */
+    private static Player newPlayer(int id, String name, String password) {
+        return new Player(id, name, password, 0);
+    }
     static boolean isBlank(String s){ return s == null || s.trim().isEmpty(); }
-    private static String optText(JsonNode n, String k){ JsonNode v=n.get(k); return v!=null && !v.isNull()? v.asText() : null; }
-    private static Integer optInt(JsonNode n, String k){ JsonNode v=n.get(k); return (v!=null && v.isInt())? v.asInt() : (v!=null && v.isNumber()? v.numberValue().intValue(): null); }
-    private static void safeWrite(Writer out, String s) throws IOException { out.write(s); out.write("\n"); out.flush(); }
 
     // ===== players.json 持久化 =====
     public static class PersistPlayer {
@@ -804,7 +1713,7 @@ public class Server {
         public PersistPlayer(int id, String name, String password, int coins) {
             this.id=id; this.name=name; this.password=password; this.coins=coins;
         }
-        public static PersistPlayer from(Player p) { return new PersistPlayer(p.getId(), p.getName(), p.getPassword(), p.getCoins()); }
+        public static PersistPlayer from(Player p, int coins) { return new PersistPlayer(p.getId(), p.getName(), p.getPassword(), coins); }
     }
 
     private void loadPlayersFromDisk() {
@@ -820,15 +1729,12 @@ public class Server {
             List<PersistPlayer> list = mapper.readValue(bytes, new TypeReference<List<PersistPlayer>>() {});
             int maxId = 0;
             for (PersistPlayer pp : list) {
-                Player p = new Player();
-                p.setId(pp.id);
-                p.setName(pp.name);
-                p.setCoins(pp.coins);
-                try {
-                    var pwdField = Player.class.getDeclaredField("password");
-                    pwdField.setAccessible(true);
-                    pwdField.set(p, pp.password);
-                } catch (Exception ignore) {}
+                if (!CoinLedger.validId(pp.id)) {
+                    System.err.println("[LOAD] skip player " + pp.name + ": id out of range " + pp.id);
+                    continue;
+                }
+                Player p = newPlayer(pp.id, pp.name, pp.password);
+                ledger.reset(pp.id, pp.coins);
 
                 players.put(pp.name.toLowerCase(Locale.ROOT), p);
                 playersById.put(p.getId(), p);
@@ -843,29 +1749,24 @@ public class Server {
     }
 
     private void savePlayersAsync() {
-        diskWriter.submit(this::flushPlayersSync);
+        if (wal == null) playersSlot.mark(); // WAL 模式下由压缩器负责写快照
     }
 
-    private void flushPlayersSync() {
-        try {
-            Files.createDirectories(DATA_DIR);
-
-            List<PersistPlayer> list = new ArrayList<>(players.size());
-            for (Player p : players.values()) list.add(PersistPlayer.from(p));
+    private void flushPlayersSync() throws IOException {
+        Files.createDirectories(DATA_DIR);
 
-            Path tmp = PLAYERS_FILE.resolveSibling(PLAYERS_FILE.getFileName() + ".tmp");
-            try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(out, list);
-            }
-            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ)) { ch.force(true); }
-            Files.move(tmp, PLAYERS_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-            try (FileChannel dir = FileChannel.open(DATA_DIR, StandardOpenOption.READ)) { dir.force(true); }
+        List<PersistPlayer> list = new ArrayList<>(players.size());
+        for (Player p : players.values()) list.add(PersistPlayer.from(p, ledger.balance(p.getId())));
 
-            System.out.println("[SAVE] players=" + list.size() + " -> " + PLAYERS_FILE);
-        } catch (Exception e) {
-            System.err.println("[SAVE] players failed: " + e.getMessage());
-            e.printStackTrace();
+        Path tmp = PLAYERS_FILE.resolveSibling(PLAYERS_FILE.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(out, list);
         }
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ)) { ch.force(true); }
+        Files.move(tmp, PLAYERS_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel dir = FileChannel.open(DATA_DIR, StandardOpenOption.READ)) { dir.force(true); }
+
+        System.out.println("[SAVE] players=" + list.size() + " -> " + PLAYERS_FILE);
     }
 
     // ===== farms.json 持久化 =====
@@ -884,69 +1785,79 @@ public class Server {
         public PersistFarm() {}
     }
 
-    private PersistFarm toPersistFarm(int playerId, Farm f) {
+    private PersistFarm toPersistFarm(int playerId, FarmCells f) {
         PersistFarm pf = new PersistFarm();
         pf.playerId = playerId; pf.rows = f.rows; pf.cols = f.cols;
         pf.cells = new ArrayList<>(f.rows * f.cols);
         for (int r=0; r<f.rows; r++) {
             for (int c=0; c<f.cols; c++) {
-                PlotState s = f.board[r][c];
-                Long ra = f.ripeAt[r][c];
-                pf.cells.add(new PersistCell(s.name(), ra));
+                long ra = f.ripeAt(r, c);
+                pf.cells.add(new PersistCell(f.get(r, c).name(), ra == 0 ? null : ra));
             }
         }
         return pf;
     }
 
     private Farm fromPersistFarm(PersistFarm pf) {
-        Farm f = new Farm();
-        if (pf == null) return f;
+        if (pf == null) return new Farm();
+        Farm f = pf.rows > 0 && pf.cols > 0
+                ? new Farm(Math.min(pf.rows, MAX_FARM_SIDE), Math.min(pf.cols, MAX_FARM_SIDE)) : new Farm();
         long now = System.currentTimeMillis();
         int idx = 0;
         for (int r=0; r<f.rows; r++) {
             for (int c=0; c<f.cols; c++) {
+                // 按存档的列数取下标：边长被截到上限时跳过多出来的列
+                idx = r * (pf.cols > 0 ? pf.cols : f.cols) + c;
                 PersistCell pc = (pf.cells != null && idx < pf.cells.size()) ? pf.cells.get(idx) : null;
-                idx++;
-                if (pc == null || pc.state == null) {
-                    f.board[r][c] = PlotState.EMPTY; f.ripeAt[r][c] = null; continue;
-                }
-                PlotState s = PlotState.valueOf(pc.state);
-                if (s == PlotState.GROWING && pc.ripeAt != null) {
-                    if (now >= pc.ripeAt) {
-                        f.board[r][c] = PlotState.RIPE; f.ripeAt[r][c] = null;
-                    } else {
-                        f.board[r][c] = PlotState.GROWING; f.ripeAt[r][c] = pc.ripeAt;
-                        final int rr=r, cc=c, pid=pf.playerId;
-                        long delay = pc.ripeAt - now;
-                        scheduler.schedule(() -> {
-                            Farm ff = farms.get(pid);
-                            Player pp = playersById.get(pid);
-                            if (ff == null || pp == null) return;
-                            synchronized (ff) {
-                                if (ff.board[rr][cc] == PlotState.GROWING) {
-                                    ff.board[rr][cc] = PlotState.RIPE;
-                                    ff.ripeAt[rr][cc] = null;
-                                    broadcastFarmUpdate(pid,
-                                            new PushCellUpdate(pid, rr, cc, PlotState.RIPE, pp.getCoins()));
-                                    saveFarmsAsync();
-                                }
-                            }
-                        }, delay, TimeUnit.MILLISECONDS);
-                    }
-                } else {
-                    f.board[r][c] = s;
-                    f.ripeAt[r][c] = null;
-                }
+                if (pc == null || pc.state == null) continue;
+                restoreCell(f, pf.playerId, r, c, PlotState.valueOf(pc.state), pc.ripeAt == null ? 0 : pc.ripeAt, now);
             }
         }
         return f;
     }
 
+    /** 从快照恢复一格：已过成熟时间的 GROWING 直接记为 RIPE，否则重新调度成熟；ripeAt=0 表示无 */
+    private void restoreCell(Farm f, int pid, int r, int c, PlotState s, long ripeAt, long now) {
+        if (s == PlotState.GROWING && ripeAt != 0) {
+            if (now >= ripeAt) {
+                f.set(r, c, PlotState.RIPE);
+            } else {
+                f.set(r, c, PlotState.GROWING, ripeAt);
+                if (!LAZY_RIPENING) scheduleRipen(pid, f, r, c, ripeAt); // lazy：有人看时再登记
+            }
+        } else {
+            f.set(r, c, s);
+        }
+    }
+
+    /** farms.bin：内存映射逐块读取，不经过 PersistFarm/Jackson */
+    private int loadFarmsFromBinary() throws IOException {
+        long now = System.currentTimeMillis();
+        return FarmSnapshot.read(FARMS_BIN, (pid, rows, cols, packed, ripeAt) -> {
+            Farm f = new Farm(Math.min(rows, MAX_FARM_SIDE), Math.min(cols, MAX_FARM_SIDE));
+            for (int r = 0; r < f.rows; r++) {
+                for (int c = 0; c < f.cols; c++) {
+                    int i = r * cols + c;
+                    restoreCell(f, pid, r, c, PLOT_STATES[FarmSnapshot.stateAt(packed, i)], ripeAt[i], now);
+                }
+            }
+            farms.put(pid, f);
+        });
+    }
+
     private void loadFarmsFromDisk() {
         try {
+            if (BINARY_SNAPSHOT && Files.exists(FARMS_BIN)) {
+                int count = loadFarmsFromBinary();
+                for (Player p : playersById.values()) {
+                    farms.computeIfAbsent(p.getId(), k -> new Farm());
+                }
+                System.out.println("[LOAD] farms.bin farms=" + count + ", playersWithFarm=" + farms.size());
+                return;
+            }
             if (!Files.exists(FARMS_FILE)) {
                 for (Player p : playersById.values()) {
-                    farms.putIfAbsent(p.getId(), new Farm());
+                    farms.computeIfAbsent(p.getId(), k -> new Farm());
                 }
                 System.out.println("[LOAD] no farms.json, create empty farms for players=" + playersById.size());
                 return;
@@ -962,7 +1873,7 @@ public class Server {
                 count++;
             }
             for (Player p : playersById.values()) {
-                farms.putIfAbsent(p.getId(), new Farm());
+                farms.computeIfAbsent(p.getId(), k -> new Farm());
             }
             System.out.println("[LOAD] farms=" + count + ", playersWithFarm=" + farms.size());
         } catch (Exception e) {
@@ -972,35 +1883,58 @@ public class Server {
     }
 
     private void saveFarmsAsync() {
-        diskWriter.submit(this::flushFarmsSync);
+        if (wal == null) farmsSlot.mark(); // WAL 模式下由压缩器负责写快照
     }
 
-    private void flushFarmsSync() {
-        try {
-            Files.createDirectories(DATA_DIR);
+    /**
+     * 写各农场最近发布的只读副本，不进分片、不加锁。先等各分片把已投递的任务做完：
+     * 标记写回（或 WAL 切段）之前的修改此时都已发布，不会被漏掉。
+     */
+    private void flushFarmsSync() throws IOException {
+        shards.quiesce(SNAPSHOT_WAIT_MS);
+        if (BINARY_SNAPSHOT) {
+            flushFarmsBinarySync();
+            return;
+        }
+        Files.createDirectories(DATA_DIR);
 
-            List<PersistFarm> list = new ArrayList<>(farms.size());
-            for (var e : farms.entrySet()) {
-                int pid = e.getKey();
-                Farm f = e.getValue();
-                synchronized (f) {
-                    list.add(toPersistFarm(pid, f));
-                }
-            }
+        List<PersistFarm> list = new ArrayList<>(farms.size());
+        for (var e : farms.entrySet()) list.add(toPersistFarm(e.getKey(), e.getValue().view));
 
-            Path tmp = FARMS_FILE.resolveSibling(FARMS_FILE.getFileName() + ".tmp");
-            try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(out, list);
-            }
-            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ)) { ch.force(true); }
-            Files.move(tmp, FARMS_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-            try (FileChannel dir = FileChannel.open(DATA_DIR, StandardOpenOption.READ)) { dir.force(true); }
+        Path tmp = FARMS_FILE.resolveSibling(FARMS_FILE.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(out, list);
+        }
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ)) { ch.force(true); }
+        Files.move(tmp, FARMS_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel dir = FileChannel.open(DATA_DIR, StandardOpenOption.READ)) { dir.force(true); }
 
-            System.out.println("[SAVE] farms=" + list.size() + " -> " + FARMS_FILE);
-        } catch (Exception e) {
-            System.err.println("[SAVE] farms failed: " + e.getMessage());
-            e.printStackTrace();
+        System.out.println("[SAVE] farms=" + list.size() + " -> " + FARMS_FILE);
+    }
+
+    private void flushFarmsBinarySync() throws IOException {
+        Files.createDirectories(DATA_DIR);
+        int maxCells = MAX_FARM_SIDE * MAX_FARM_SIDE;
+        byte[] packed = new byte[FarmSnapshot.packedBytes(maxCells)];
+        long[] ripeAt = new long[maxCells];
+        int count = 0;
+
+        Path tmp = FARMS_BIN.resolveSibling(FARMS_BIN.getFileName() + ".tmp");
+        try (FarmSnapshot.Writer w = new FarmSnapshot.Writer(tmp)) {
+            for (var e : farms.entrySet()) {
+                FarmView v = e.getValue().view;
+                int cells = v.rows * v.cols;
+                // 文件里的 2-bit 布局与 Farm.words 相同，按小端拆成字节即可
+                for (int k = 0; k < FarmSnapshot.packedBytes(cells); k++) packed[k] = (byte) (v.words[k >>> 3] >>> ((k & 7) << 3));
+                System.arraycopy(v.ripeAt, 0, ripeAt, 0, cells);
+                w.add(e.getKey(), v.rows, v.cols, packed, ripeAt);
+                count++;
+            }
         }
+        Files.move(tmp, FARMS_BIN, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel dir = FileChannel.open(DATA_DIR, StandardOpenOption.READ)) { dir.force(true); }
+
+        System.out.println("[SAVE] farms=" + count + " -> " + FARMS_BIN);
     }
 
     // ===== friends.json 持久化 =====
@@ -1037,37 +1971,109 @@ public class Server {
     }
 
     private void saveFriendsAsync() {
-        diskWriter.submit(this::flushFriendsSync);
+        if (wal == null) friendsSlot.mark(); // WAL 模式下由压缩器负责写快照
     }
 
-    private void flushFriendsSync() {
-        try {
-            Files.createDirectories(DATA_DIR);
+    private void flushFriendsSync() throws IOException {
+        Files.createDirectories(DATA_DIR);
 
-            List<PersistFriendList> list = new ArrayList<>();
-            for (var e : friends.entrySet()) {
-                int pid = e.getKey();
-                Set<Integer> set = e.getValue();
-                list.add(new PersistFriendList(pid, new ArrayList<>(set)));
-            }
+        List<PersistFriendList> list = new ArrayList<>();
+        for (var e : friends.entrySet()) {
+            int pid = e.getKey();
+            Set<Integer> set = e.getValue();
+            list.add(new PersistFriendList(pid, new ArrayList<>(set)));
+        }
 
-            Path tmp = FRIENDS_FILE.resolveSibling(FRIENDS_FILE.getFileName() + ".tmp");
-            try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(out, list);
-            }
-            try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ)) { ch.force(true); }
-            Files.move(tmp, FRIENDS_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-            try (FileChannel dir = FileChannel.open(DATA_DIR, StandardOpenOption.READ)) { dir.force(true); }
+        Path tmp = FRIENDS_FILE.resolveSibling(FRIENDS_FILE.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            mapper.writerWithDefaultPrettyPrinter().writeValue(out, list);
+        }
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ)) { ch.force(true); }
+        Files.move(tmp, FRIENDS_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel dir = FileChannel.open(DATA_DIR, StandardOpenOption.READ)) { dir.force(true); }
+
+        System.out.println("[SAVE] friends for players=" + list.size() + " -> " + FRIENDS_FILE);
+    }
 
-            System.out.println("[SAVE] friends for players=" + list.size() + " -> " + FRIENDS_FILE);
+    // ===== WAL：记录 / 重放 / 压缩 =====
+    /** 在农场的分片线程上调用（启动时的加载 / 重放除外） */
+    private void logCell(int pid, Farm f, int row, int col) {
+        if (wal == null) return;
+        wal.appendCell(pid, row, col, f.get(row, col).ordinal(), f.ripeAt(row, col));
+    }
+
+    /** 余额由 WAL 在入队时读取，保证同一玩家的金币记录按新旧排列 */
+    private void logCoins(int pid) {
+        if (wal != null) wal.appendCoins(pid, () -> ledger.balance(pid));
+    }
+
+    /** 当前段足够大时，交给写回线程做一次压缩 */
+    private void maybeCompactWal() {
+        if (wal.segmentBytes() >= WAL_COMPACT_BYTES) {
+            writeBehind.submit(this::compactWal);
+        }
+    }
+
+    /**
+     * 切段 -> 写全量快照 -> 删除旧段。
+     * 切段返回时旧段中的修改都已作用在内存里，flushFarmsSync 又会等它们所在的分片任务发布副本，所以随后写出的快照一定包含它们；
+     * 新段里的记录可能也已包含在快照中，但重放是幂等的。任何一个快照没写成都会抛出来，旧段留着，下次压缩再来。
+     */
+    private void compactWal() {
+        try {
+            long keepFrom = wal.compact(() -> {
+                flushPlayersSync();
+                flushFarmsSync();
+                flushFriendsSync();
+            });
+            System.out.println("[WAL] compacted, keep segments >= " + keepFrom);
         } catch (Exception e) {
-            System.err.println("[SAVE] friends failed: " + e.getMessage());
-            e.printStackTrace();
+            System.err.println("[WAL] compaction failed: " + e.getMessage());
+        }
+    }
+
+    /** 在快照基础上重放 WAL 记录 */
+    private class WalReplayer implements WriteAheadLog.Replayer {
+        private final long now = System.currentTimeMillis();
+
+        @Override
+        public void cell(int playerId, int row, int col, int state, long ripeAt) {
+            Farm f = farms.computeIfAbsent(playerId, k -> new Farm());
+            if (outOfRange(f, row, col)) return;
+            restoreCell(f, playerId, row, col, PlotState.values()[state], ripeAt, now);
+        }
+
+        @Override
+        public void coins(int playerId, int coins) {
+            if (playersById.containsKey(playerId)) ledger.reset(playerId, coins);
+        }
+
+        @Override
+        public void friend(int a, int b) {
+            friends.computeIfAbsent(a, k -> ConcurrentHashMap.newKeySet()).add(b);
+            friends.computeIfAbsent(b, k -> ConcurrentHashMap.newKeySet()).add(a);
+        }
+
+        @Override
+        public void signup(int id, String name, String password, int coins) {
+            if (playersById.containsKey(id)) return;
+            if (!CoinLedger.validId(id)) {
+                System.err.println("[WAL] skip signup " + name + ": id out of range " + id);
+                return;
+            }
+            Player p = newPlayer(id, name, password);
+            ledger.reset(id, coins);
+            players.put(name.toLowerCase(Locale.ROOT), p);
+            playersById.put(id, p);
+            farms.computeIfAbsent(id, k -> new Farm());
+            friends.putIfAbsent(id, ConcurrentHashMap.newKeySet());
+            if (nextId.get() <= id) nextId.set(id + 1);
         }
     }
 
     // ===== main =====
+    // 监听端口：-Dfarm.port=N（默认 5555）
     public static void main(String[] args) throws Exception {
-        new Server(5555).start();
+        new Server(Integer.getInteger("farm.port", 5555)).start();
     }
 }
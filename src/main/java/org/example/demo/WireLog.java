@@ -0,0 +1,278 @@
+package org.example.demo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
+
+/**
+ * 收发报文日志（[RECV] / [SEND] / [PUSH]）：业务线程只把引用放进定长环形缓冲区，
+ * 由后台线程解码、截断后交给 java.util.logging 输出，控制台慢不会拖住请求处理。
+ *
+ * -Dfarm.log.level=FINE|INFO|OFF：FINE 输出报文 + 统计；INFO 只保留计数和周期统计；OFF 全关
+ * -Dfarm.log.sample=PING:0,PUSH_FARM_DELTA:10,*:1：按消息类型采样（每 N 条记 1 条，0 表示不记）
+ * -Dfarm.log.maxChars=N：单条报文最多输出多少字符
+ * -Dfarm.log.buffer=N：环形缓冲区条数，满了丢弃并计数
+ * -Dfarm.log.statsSec=N：周期统计间隔
+ */
+class WireLog {
+
+    private static final String[] TAGS = { "RECV", "SEND", "PUSH" };
+    private static final int RECV = 0, SEND = 1, PUSH = 2;
+
+    /**
+     * 计数用的消息类型：请求类型 + 服务器主动发的几种，按名字排序；其他（客户端乱填的）都记在 "?" 下，
+     * 所以计数表是定长的，不会被随便发 type 的客户端撑大。
+     */
+    private static final String[] KEYS;
+    private static final Map<String, Integer> KEY_INDEX;
+    private static final int UNKNOWN;
+    static {
+        List<String> keys = new ArrayList<>();
+        for (Server.ReqType t : Server.ReqType.values()) keys.add(t.name());
+        Collections.addAll(keys, "INFO", "PUSH_FARM_DELTA", "PUSH_FARM_SNAPSHOT", "?");
+        Collections.sort(keys);
+        KEYS = keys.toArray(new String[0]);
+        Map<String, Integer> index = new HashMap<>();
+        for (int i = 0; i < KEYS.length; i++) index.put(KEYS[i], i);
+        KEY_INDEX = Map.copyOf(index);
+        UNKNOWN = KEY_INDEX.get("?");
+    }
+
+    private final Logger logger = Logger.getLogger("org.example.demo.wire");
+    private final int maxChars;
+    private final long statsNanos;
+
+    /** [标签][KEYS 下标] 的计数（无论是否输出都计） */
+    private final TypeCounter[][] counters = new TypeCounter[TAGS.length][KEYS.length];
+    private final Map<String, Integer> sampleRates = new ConcurrentHashMap<>();
+    private final int defaultRate;
+    private final AtomicLong lost = new AtomicLong();
+
+    // 环形缓冲区：由 lock 保护，只存引用，格式化都在后台线程
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int mask;
+    private final byte[] ringTag;
+    private final String[] ringType;
+    private final int[] ringTo;
+    private final Object[] ringPayload;
+    private long head, tail;
+
+    private static final class TypeCounter {
+        final AtomicLong seen = new AtomicLong();
+        final AtomicLong logged = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    WireLog() {
+        logger.setUseParentHandlers(false);
+        logger.setLevel(parseLevel(System.getProperty("farm.log.level", "FINE")));
+        StreamHandler out = new StreamHandler(System.out, new Formatter() {
+            @Override
+            public String format(LogRecord r) { return r.getMessage() + System.lineSeparator(); }
+        });
+        out.setLevel(Level.ALL);
+        logger.addHandler(out);
+
+        this.maxChars = Math.max(16, Integer.getInteger("farm.log.maxChars", 512));
+        this.statsNanos = TimeUnit.SECONDS.toNanos(Math.max(1, Long.getLong("farm.log.statsSec", 60)));
+        int size = Integer.highestOneBit(Math.max(2, Integer.getInteger("farm.log.buffer", 8192)) - 1) << 1;
+        this.mask = size - 1;
+        this.ringTag = new byte[size];
+        this.ringType = new String[size];
+        this.ringTo = new int[size];
+        this.ringPayload = new Object[size];
+        for (TypeCounter[] row : counters) {
+            for (int i = 0; i < row.length; i++) row[i] = new TypeCounter();
+        }
+
+        int def = 1;
+        for (String part : System.getProperty("farm.log.sample", "").split(",")) {
+            int k = part.indexOf(':');
+            if (k <= 0) continue;
+            try {
+                int rate = Math.max(0, Integer.parseInt(part.substring(k + 1).trim()));
+                String type = part.substring(0, k).trim();
+                if ("*".equals(type)) def = rate; else sampleRates.put(type, rate);
+            } catch (NumberFormatException ignore) {}
+        }
+        this.defaultRate = def;
+    }
+
+    /** 写错的级别不让服务器起不来：按 FINE 处理并提示 */
+    private static Level parseLevel(String name) {
+        try {
+            return Level.parse(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("[WIRE] bad farm.log.level '" + name + "', using FINE");
+            return Level.FINE;
+        }
+    }
+
+    /** 计数表下标；PING 不区分大小写（同 Request.reqType） */
+    private static int keyOf(String type) {
+        if (type == null) return UNKNOWN;
+        Integer i = KEY_INDEX.get(type);
+        if (i == null && "PING".equalsIgnoreCase(type)) i = KEY_INDEX.get("PING");
+        return i == null ? UNKNOWN : i;
+    }
+
+    void start() {
+        Thread t = new Thread(this::run, "wire-log");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // ===== 业务线程调用：只计数 + 入环，不格式化 =====
+
+    /** payload：JSON 字符串，或二进制帧 / 编码好的 JSON 行（byte[]，可能被多个连接共享，只读） */
+    void recv(String type, Object payload) { offer(RECV, type, -1, payload); }
+
+    void send(String type, Object payload) { offer(SEND, type, -1, payload); }
+
+    /** to < 0 表示不标注接收者 */
+    void push(String type, int to, byte[] line) { offer(PUSH, type, to, line); }
+
+    private void offer(int tag, String type, int to, Object payload) {
+        int key = keyOf(type);
+        type = KEYS[key];
+        TypeCounter c = counters[tag][key];
+        long n = c.seen.getAndIncrement();
+        c.bytes.addAndGet(payload instanceof byte[] b ? b.length : payload instanceof String str ? str.length() : 0);
+        if (!logger.isLoggable(Level.FINE)) return;
+        int rate = sampleRates.getOrDefault(type, defaultRate);
+        if (rate == 0 || n % rate != 0) return;
+        c.logged.incrementAndGet();
+
+        lock.lock();
+        try {
+            if (tail - head > mask) { lost.incrementAndGet(); return; }
+            int i = (int) (tail & mask);
+            ringTag[i] = (byte) tag;
+            ringType[i] = type;
+            ringTo[i] = to;
+            ringPayload[i] = payload;
+            if (tail++ == head) notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // ===== 后台线程 =====
+
+    private void run() {
+        StringBuilder sb = new StringBuilder(maxChars + 64);
+        long nextStats = System.nanoTime() + statsNanos;
+        String lastStats = "";
+        while (true) {
+            try {
+                int tag, to;
+                Object payload;
+                boolean drained;
+                lock.lock();
+                try {
+                    while (head == tail) {
+                        long wait = nextStats - System.nanoTime();
+                        if (wait <= 0 || notEmpty.awaitNanos(wait) <= 0) break;
+                    }
+                    if (head == tail) {
+                        tag = -1; to = 0; payload = null;
+                    } else {
+                        int i = (int) (head & mask);
+                        tag = ringTag[i];
+                        to = ringTo[i];
+                        payload = ringPayload[i];
+                        ringType[i] = null;
+                        ringPayload[i] = null;
+                        head++;
+                    }
+                    drained = head == tail;
+                } finally {
+                    lock.unlock();
+                }
+
+                if (tag >= 0) {
+                    sb.setLength(0);
+                    sb.append('[').append(TAGS[tag]).append("] ");
+                    if (to >= 0) sb.append("to ").append(to).append(' ');
+                    appendTruncated(sb, payload);
+                    logger.fine(sb.toString());
+                }
+                if (drained) flushHandlers(); // 一批写完再刷控制台
+                if (System.nanoTime() - nextStats >= 0) {
+                    String st = stats();
+                    if (!st.equals(lastStats)) { // 空闲时不重复打印
+                        logger.info(st);
+                        flushHandlers();
+                        lastStats = st;
+                    }
+                    nextStats = System.nanoTime() + statsNanos;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void appendTruncated(StringBuilder sb, Object payload) {
+        String s;
+        if (payload instanceof byte[] b && (b.length == 0 || b[0] != '{')) {
+            // 二进制帧：十六进制
+            sb.append("bin[").append(b.length).append("] ");
+            int n = Math.min(b.length, maxChars / 2);
+            for (int i = 0; i < n; i++) sb.append(Character.forDigit((b[i] >> 4) & 0xF, 16)).append(Character.forDigit(b[i] & 0xF, 16));
+            if (n < b.length) sb.append("...");
+            return;
+        } else if (payload instanceof byte[] b) {
+            int len = b.length > 0 && b[b.length - 1] == '\n' ? b.length - 1 : b.length;
+            s = new String(b, 0, len, StandardCharsets.UTF_8);
+        } else {
+            s = String.valueOf(payload);
+        }
+        if (s.length() <= maxChars) {
+            sb.append(s);
+        } else {
+            sb.append(s, 0, maxChars).append("...(+").append(s.length() - maxChars).append(" chars)");
+        }
+    }
+
+    private void flushHandlers() {
+        for (var h : logger.getHandlers()) h.flush();
+    }
+
+    /** 按标签 / 类型的计数：已见（已记录）~平均每条字节数，以及因缓冲区满丢掉的条数 */
+    String stats() {
+        StringBuilder sb = new StringBuilder("[WIRE]");
+        for (int t = 0; t < TAGS.length; t++) {
+            sb.append(' ').append(TAGS[t]).append('{');
+            boolean first = true;
+            for (int k = 0; k < KEYS.length; k++) {
+                TypeCounter c = counters[t][k];
+                long seen = c.seen.get();
+                if (seen == 0) continue;
+                if (!first) sb.append(',');
+                first = false;
+                sb.append(KEYS[k]).append('=').append(seen).append('(').append(c.logged.get()).append(')');
+                if (seen > 0) sb.append('~').append(c.bytes.get() / seen).append('B');
+            }
+            sb.append('}');
+        }
+        return sb.append(" lost=").append(lost.get()).toString();
+    }
+}
@@ -0,0 +1,436 @@
+package org.example.demo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * 追加写日志（WAL）：每次修改只追加一条二进制记录，由单独的线程批量写入并 fsync 一次（group commit）。
+ * 修改方入队后调 sync() 拿到一个 future，写线程在它所在的那一批 fsync 之后才完成它；
+ * 服务器等它完成再回 ok，所以回过 ok 的修改一定已经落盘。
+ * 启动时在 json 快照之上重放；压缩时先切换到新段，再写快照，最后删除旧段。
+ *
+ * 写盘失败时整批记录留着，换一个新段重写（旧段末尾可能多出半条，重放到那里就停，不影响后面的段）；
+ * 连续 WRITE_ATTEMPTS 次都失败就把日志标记为损坏：之后的 sync() 直接失败，服务器拒绝所有修改，不会再有“回了 ok 却没记下”的情况。
+ *
+ * 段文件：data/wal-00000001.log ...
+ * 记录格式：[int len][int crc32(payload)][payload]，payload[0] 为记录类型。
+ * 所有记录都是“绝对值”（格子状态、金币余额），重放是幂等的。
+ */
+class WriteAheadLog {
+
+    static final byte CELL = 1;     // int playerId, byte row, byte col, byte state, long ripeAt(0=无)
+    static final byte COINS = 2;    // int playerId, int coins（余额，不是增量）
+    static final byte FRIEND = 3;   // int a, int b（对称好友边）
+    static final byte SIGNUP = 4;   // int id, str name, str password, int coins
+    static final byte CELLS = 5;    // int playerId, int coins, u16 n, n × (byte row, byte col, byte state, long ripeAt)：一次批量操作
+
+    /** 重放回调 */
+    interface Replayer {
+        void cell(int playerId, int row, int col, int state, long ripeAt);
+        void coins(int playerId, int coins);
+        void friend(int a, int b);
+        void signup(int id, String name, String password, int coins);
+    }
+
+    /** 压缩时写全量快照；抛异常表示快照没写成，旧段不能删 */
+    interface Snapshot {
+        void write() throws IOException;
+    }
+
+    /** 切段请求：由写线程处理，保证之前入队的记录都落在旧段里 */
+    private record Rotate(CompletableFuture<Long> done) {}
+    private record Stop(CompletableFuture<Void> done) {}
+    /** 落盘确认：排在它前面的记录 fsync 之后完成 */
+    private record Sync(CompletableFuture<Void> done) {}
+
+    private static final int BATCH_MAX = 4096;
+    /** 一批记录最多写几次（每次失败后换新段重试） */
+    private static final int WRITE_ATTEMPTS = 3;
+
+    private final Path dir;
+    private final BlockingQueue<Object> queue;
+    /**
+     * 带金币余额的记录在这把锁里读余额、入队：余额由各线程无锁地改（CoinLedger），
+     * 同一玩家靠后的记录一定不比靠前的旧，重放取最后一条就是最新余额。
+     */
+    private final ReentrantLock balanceOrder = new ReentrantLock();
+    private Thread appender;
+    /** 重试也写不进去时记下原因，之后不再接受修改 */
+    private volatile IOException broken;
+
+    // 以下字段只在写线程（或 start 之前）访问
+    private FileChannel ch;
+    private long seq;
+    private volatile long segmentBytes;
+
+    WriteAheadLog(Path dir, int queueCapacity) {
+        this.dir = dir;
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    // ===== 启动：重放 + 打开新段 =====
+
+    /** 按顺序重放所有段，返回重放的记录数；之后新记录写到一个新段 */
+    int replay(Replayer r) throws IOException {
+        Files.createDirectories(dir);
+        int count = 0;
+        for (long s : listSegments()) {
+            count += replaySegment(segmentPath(s), r);
+            seq = s;
+        }
+        openSegment(seq + 1);
+        return count;
+    }
+
+    private int replaySegment(Path p, Replayer r) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(p));
+        CRC32 crc = new CRC32();
+        int count = 0;
+        while (buf.remaining() >= 8) {
+            int len = buf.getInt();
+            int sum = buf.getInt();
+            if (len <= 0 || len > buf.remaining()) break; // 末尾半条记录（崩溃时写了一半）
+            crc.reset();
+            crc.update(buf.array(), buf.position(), len);
+            if ((int) crc.getValue() != sum) {
+                System.err.println("[WAL] bad checksum in " + p.getFileName() + ", stop replay of this segment");
+                break;
+            }
+            int end = buf.position() + len;
+            switch (buf.get()) {
+                case CELL -> r.cell(buf.getInt(), buf.get(), buf.get(), buf.get(), buf.getLong());
+                case COINS -> r.coins(buf.getInt(), buf.getInt());
+                case FRIEND -> r.friend(buf.getInt(), buf.getInt());
+                case SIGNUP -> r.signup(buf.getInt(), getString(buf), getString(buf), buf.getInt());
+                case CELLS -> {
+                    int pid = buf.getInt(), coins = buf.getInt(), n = buf.getShort() & 0xFFFF;
+                    for (int i = 0; i < n; i++) r.cell(pid, buf.get(), buf.get(), buf.get(), buf.getLong());
+                    r.coins(pid, coins);
+                }
+                default -> System.err.println("[WAL] unknown record skipped");
+            }
+            buf.position(end);
+            count++;
+        }
+        return count;
+    }
+
+    void start() {
+        appender = new Thread(this::appendLoop, "wal-appender");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    // ===== 追加 =====
+
+    void appendCell(int playerId, int row, int col, int state, long ripeAt) {
+        ByteBuffer b = ByteBuffer.allocate(1 + 4 + 3 + 8);
+        b.put(CELL).putInt(playerId).put((byte) row).put((byte) col).put((byte) state).putLong(ripeAt);
+        enqueue(b);
+    }
+
+    void appendCoins(int playerId, IntSupplier coins) {
+        ByteBuffer b = ByteBuffer.allocate(1 + 4 + 4);
+        b.put(COINS).putInt(playerId);
+        balanceOrder.lock();
+        try {
+            b.putInt(coins.getAsInt());
+            enqueue(b);
+        } finally {
+            balanceOrder.unlock();
+        }
+    }
+
+    /** 批量操作整批一条记录：重放时要么全部生效，要么（记录不完整）全部丢弃；cells 为格子下标 */
+    void appendCells(int playerId, IntSupplier coins, int cols, int[] cells, int n, int[] states, long[] ripeAt) {
+        ByteBuffer b = ByteBuffer.allocate(1 + 4 + 4 + 2 + n * 11);
+        b.put(CELLS).putInt(playerId).putInt(0).putShort((short) n);
+        for (int i = 0; i < n; i++) {
+            b.put((byte) (cells[i] / cols)).put((byte) (cells[i] % cols)).put((byte) states[i]).putLong(ripeAt[i]);
+        }
+        balanceOrder.lock();
+        try {
+            b.putInt(5, coins.getAsInt());
+            enqueue(b);
+        } finally {
+            balanceOrder.unlock();
+        }
+    }
+
+    void appendFriend(int a, int b) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 4 + 4);
+        buf.put(FRIEND).putInt(a).putInt(b);
+        enqueue(buf);
+    }
+
+    void appendSignup(int id, String name, String password, int coins) {
+        byte[] n = bytes(name), pw = bytes(password);
+        ByteBuffer b = ByteBuffer.allocate(1 + 4 + 2 + n.length + 2 + pw.length + 4);
+        b.put(SIGNUP).putInt(id);
+        b.putShort((short) n.length).put(n);
+        b.putShort((short) pw.length).put(pw);
+        b.putInt(coins);
+        enqueue(b);
+    }
+
+    /**
+     * 等此刻之前入队的记录都 fsync 之后完成；日志已损坏时直接以异常完成。
+     * 同一批里的多个 sync 共用一次 fsync，这才是 group commit 省下来的东西。
+     */
+    CompletableFuture<Void> sync() {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        IOException e = broken;
+        if (e != null) {
+            done.completeExceptionally(e);
+            return done;
+        }
+        try {
+            queue.put(new Sync(done));
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(ie);
+        }
+        return done;
+    }
+
+    /** 日志已损坏（写盘重试失败），修改不能再被确认 */
+    boolean isBroken() { return broken != null; }
+
+    /** 满了就阻塞调用方（背压），不会无限堆积 */
+    private void enqueue(ByteBuffer payload) {
+        byte[] p = payload.array();
+        CRC32 crc = new CRC32();
+        crc.update(p, 0, p.length);
+        ByteBuffer rec = ByteBuffer.allocate(8 + p.length);
+        rec.putInt(p.length).putInt((int) crc.getValue()).put(p).flip();
+        try {
+            queue.put(rec);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ===== 压缩支持 =====
+
+    /** 当前段大小（字节），供压缩器判断是否需要压缩 */
+    long segmentBytes() { return segmentBytes; }
+
+    /** 切到新段并返回新段序号；返回时此前入队的记录都已写入旧段并 fsync */
+    long rotate() {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        try {
+            queue.put(new Rotate(done));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+        return done.join();
+    }
+
+    /**
+     * 切段 -> 写全量快照 -> 删除旧段，返回保留的第一个段序号。
+     * 快照抛异常时旧段原样留着（重放仍能恢复出全部修改），异常抛给调用方，下次压缩再来。
+     */
+    long compact(Snapshot snapshot) throws IOException {
+        long keepFrom;
+        try {
+            keepFrom = rotate();
+        } catch (CompletionException e) {
+            throw new IOException("rotate failed", e.getCause());
+        }
+        if (keepFrom < 0) throw new InterruptedIOException("interrupted while rotating");
+        snapshot.write();
+        deleteBefore(keepFrom);
+        return keepFrom;
+    }
+
+    /** 删除序号小于 keepFrom 的段（它们的内容已经包含在最新快照里） */
+    void deleteBefore(long keepFrom) {
+        try {
+            for (long s : listSegments()) {
+                if (s < keepFrom) Files.deleteIfExists(segmentPath(s));
+            }
+        } catch (IOException e) {
+            System.err.println("[WAL] delete old segments failed: " + e.getMessage());
+        }
+    }
+
+    /** 写完队列里剩余的记录后关闭 */
+    void close() {
+        if (appender == null) return;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            queue.put(new Stop(done));
+            done.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (CompletionException e) {
+            System.err.println("[WAL] close: " + e.getCause());
+        }
+    }
+
+    // ===== 写线程 =====
+
+    private void appendLoop() {
+        List<Object> batch = new ArrayList<>();
+        List<Sync> synced = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, BATCH_MAX - 1);
+                if (broken != null) throw broken;
+
+                List<ByteBuffer> pending = new ArrayList<>(batch.size());
+                for (Object o : batch) {
+                    if (o instanceof ByteBuffer rec) {
+                        pending.add(rec);
+                    } else if (o instanceof Sync s) {
+                        synced.add(s);
+                    } else if (o instanceof Rotate rot) {
+                        writeDurably(pending);
+                        ch.close();
+                        openDurably(seq + 1);
+                        rot.done().complete(seq);
+                    } else if (o instanceof Stop stop) {
+                        writeDurably(pending);
+                        ch.close();
+                        for (Sync s : synced) s.done().complete(null);
+                        stop.done().complete(null);
+                        return;
+                    }
+                }
+                writeDurably(pending);
+                for (Sync s : synced) s.done().complete(null);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (broken == null) {
+                    broken = e;
+                    System.err.println("[WAL] append failed " + WRITE_ATTEMPTS + " times, rejecting mutations: " + e);
+                }
+                // 等确认 / 切段 / 关闭的调用方都以失败结束，别让它们永远卡住，也别当成写成功
+                for (Sync s : synced) s.done().completeExceptionally(e);
+                for (Object o : batch) {
+                    if (o instanceof Sync s) s.done().completeExceptionally(e);
+                    else if (o instanceof Rotate rot) rot.done().completeExceptionally(e);
+                    else if (o instanceof Stop stop) {
+                        stop.done().completeExceptionally(e);
+                        return;
+                    }
+                }
+            } finally {
+                batch.clear();
+                synced.clear();
+            }
+        }
+    }
+
+    /** 写一批并 fsync；失败时保留整批，换新段重写，最多 WRITE_ATTEMPTS 次 */
+    private void writeDurably(List<ByteBuffer> pending) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                writeAndSync(pending);
+                return;
+            } catch (IOException e) {
+                if (attempt >= WRITE_ATTEMPTS) throw e;
+                System.err.println("[WAL] append failed (" + e + "), retry #" + attempt + " in a new segment");
+                for (ByteBuffer b : pending) b.rewind();
+                try { ch.close(); } catch (IOException ignore) {}
+                pause(attempt, e);
+                try {
+                    openSegment(seq + 1);
+                } catch (IOException oe) {
+                    System.err.println("[WAL] open segment failed: " + oe);
+                }
+            }
+        }
+    }
+
+    /** 切段时打开新段，失败重试 */
+    private void openDurably(long s) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                openSegment(s);
+                return;
+            } catch (IOException e) {
+                if (attempt >= WRITE_ATTEMPTS) throw e;
+                System.err.println("[WAL] open segment failed (" + e + "), retry #" + attempt);
+                pause(attempt, e);
+            }
+        }
+    }
+
+    private static void pause(int attempt, IOException cause) throws IOException {
+        try {
+            Thread.sleep(100L * attempt);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw cause;
+        }
+    }
+
+    /** 一批记录只 fsync 一次 */
+    private void writeAndSync(List<ByteBuffer> pending) throws IOException {
+        if (pending.isEmpty()) return;
+        ByteBuffer[] arr = pending.toArray(new ByteBuffer[0]);
+        long total = 0;
+        for (ByteBuffer b : arr) total += b.remaining();
+        long written = 0;
+        while (written < total) written += ch.write(arr);
+        ch.force(false);
+        segmentBytes += total;
+        pending.clear();
+    }
+
+    private void openSegment(long s) throws IOException {
+        seq = s;
+        ch = FileChannel.open(segmentPath(s), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentBytes = ch.size();
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) { d.force(true); }
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> list = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "wal-*.log")) {
+            for (Path p : ds) {
+                String n = p.getFileName().toString();
+                try {
+                    list.add(Long.parseLong(n.substring(4, n.length() - 4)));
+                } catch (NumberFormatException ignore) {}
+            }
+        }
+        list.sort(null);
+        return list;
+    }
+
+    private Path segmentPath(long s) {
+        return dir.resolve(String.format("wal-%08d.log", s));
+    }
+
+    private static byte[] bytes(String s) {
+        return s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String getString(ByteBuffer b) {
+        int n = b.getShort() & 0xFFFF;
+        byte[] a = new byte[n];
+        b.get(a);
+        return new String(a, StandardCharsets.UTF_8);
+    }
+}
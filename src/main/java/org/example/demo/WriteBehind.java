@@ -0,0 +1,108 @@
+package org.example.demo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 合并写回：业务线程只打“脏”标记，后台线程按固定间隔（或脏标记累计到阈值时提前）
+ * 把每个脏文件整体刷一次。任意多次 save 请求在一个周期内只会产生一次落盘，
+ * 写线程队列里最多只有一个待执行的提前刷盘任务。
+ */
+class WriteBehind {
+
+    /** 把一个目标整体写到磁盘；失败时抛异常，由 Slot 记日志并在下个周期重试 */
+    interface Flusher {
+        void flush() throws IOException;
+    }
+
+    /** 一个需要落盘的目标（如 players.json），只记录“是否脏” */
+    final class Slot {
+        private final String name;
+        private final Flusher flusher;
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        private Slot(String name, Flusher flusher) {
+            this.name = name;
+            this.flusher = flusher;
+        }
+
+        /** 标记为脏；累计标记数达到阈值时请求一次提前刷盘 */
+        void mark() {
+            dirty.set(true);
+            if (pendingMarks.incrementAndGet() >= dirtyThreshold) {
+                requestFlush();
+            }
+        }
+
+        private void flushIfDirty() {
+            if (!dirty.getAndSet(false)) return;
+            try {
+                flusher.flush();
+            } catch (IOException | RuntimeException e) {
+                dirty.set(true); // 下个周期重试
+                System.err.println("[SAVE] " + name + " failed: " + e);
+            }
+        }
+    }
+
+    private final long intervalMs;
+    private final int dirtyThreshold;
+    private final List<Slot> slots = new ArrayList<>();
+    private final AtomicInteger pendingMarks = new AtomicInteger();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "write-behind");
+        t.setDaemon(true);
+        return t;
+    });
+
+    WriteBehind(long intervalMs, int dirtyThreshold) {
+        this.intervalMs = Math.max(1, intervalMs);
+        this.dirtyThreshold = Math.max(1, dirtyThreshold);
+    }
+
+    /** 必须在 start() 之前注册完所有目标 */
+    Slot register(String name, Flusher flusher) {
+        Slot s = new Slot(name, flusher);
+        slots.add(s);
+        return s;
+    }
+
+    void start() {
+        writer.scheduleWithFixedDelay(this::flushDirty, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** 在写回线程上执行任务（与常规刷盘互斥，避免同时写同一个临时文件） */
+    void submit(Runnable task) {
+        writer.execute(task);
+    }
+
+    private void requestFlush() {
+        if (flushQueued.compareAndSet(false, true)) {
+            writer.execute(this::flushDirty);
+        }
+    }
+
+    private void flushDirty() {
+        flushQueued.set(false);
+        pendingMarks.set(0);
+        for (Slot s : slots) s.flushIfDirty();
+    }
+
+    /** 关闭后台线程并把剩余脏数据同步刷完（用于 shutdown hook） */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushDirty();
+    }
+}
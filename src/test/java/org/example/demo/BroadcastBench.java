@@ -0,0 +1,90 @@
+package org.example.demo;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.util.Arrays;
+
+/**
+ * 一条推送广播给 1 / 10 / 100 / 1000 个接收者的开销：
+ * 原来每个接收者各序列化一次，对比现在序列化一次、所有接收者共享同一个字节数组。
+ * 接收者只有一个 Outbox（不起 Server、不建连接）：入队后立刻由“写者”排空发送队列，只数字节，不碰 socket。
+ * 在测试源码里，不进发布包：mvn test-compile 后带上 target/test-classes 运行。
+ * 用法：org.example.demo.BroadcastBench [每种人数下总共投递多少份，默认 2000000]
+ */
+public class BroadcastBench {
+
+    private static final int[] RECIPIENTS = { 1, 10, 100, 1000 };
+
+    private final ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    private BroadcastBench() {}
+
+    public static void main(String[] args) throws Exception {
+        int deliveries = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        BroadcastBench bench = new BroadcastBench();
+        Server.PushFarmDelta delta = new Server.PushFarmDelta();
+        delta.playerId = 1;
+        delta.cells = new int[] { 0, 5, 9, 15 };
+        delta.states = "GRRE";
+        delta.coins = 230;
+        delta.since = 1L << 40;
+        delta.version = (1L << 40) + 4;
+
+        System.out.printf("PUSH_FARM_DELTA of %d B, %d deliveries per row%n", bench.encode(delta).length, deliveries);
+        for (int round = 0; round < 2; round++) { // 第一轮预热
+            for (int n : RECIPIENTS) {
+                Recipient[] conns = new Recipient[n];
+                for (int i = 0; i < n; i++) conns[i] = new Recipient();
+                int broadcasts = Math.max(100, deliveries / n);
+
+                long t0 = System.nanoTime();
+                for (int b = 0; b < broadcasts; b++) bench.perRecipient(delta, conns);
+                long perRecipient = System.nanoTime() - t0;
+
+                t0 = System.nanoTime();
+                for (int b = 0; b < broadcasts; b++) bench.shared(delta, conns);
+                long shared = System.nanoTime() - t0;
+
+                if (round == 0) continue;
+                long sent = Arrays.stream(conns).mapToLong(c -> c.bytes).sum();
+                if (sent == 0) throw new AssertionError();
+                System.out.printf("%5d recipients: per-recipient %9.2f us/broadcast  shared %8.2f us/broadcast  (%.1fx)  encoded bytes/broadcast %7d -> %d%n",
+                        n, perRecipient / 1e3 / broadcasts, shared / 1e3 / broadcasts, perRecipient / (double) shared,
+                        (long) n * bench.encode(delta).length, bench.encode(delta).length);
+            }
+        }
+    }
+
+    /** 原来的做法：每个接收者各自序列化一次 */
+    private void perRecipient(Server.PushFarmDelta delta, Recipient[] conns) throws JsonProcessingException {
+        for (Recipient c : conns) c.sendPush(encode(delta), delta.playerId, Outbox.MULTI_CELL);
+    }
+
+    /** 现在的做法（Server.flushDelta）：序列化一次，字节数组共享 */
+    private void shared(Server.PushFarmDelta delta, Recipient[] conns) throws JsonProcessingException {
+        byte[] line = encode(delta);
+        for (Recipient c : conns) c.sendPush(line, delta.playerId, Outbox.MULTI_CELL);
+    }
+
+    private byte[] encode(Object payload) throws JsonProcessingException {
+        byte[] json = mapper.writeValueAsBytes(payload);
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        return line;
+    }
+
+    /** 入队即排空的接收者：和 ClientConn.sendPush 一样入队，再模拟一个一直跟得上的写者 */
+    private static final class Recipient {
+        final Outbox outbox = new Outbox(1024, Outbox.Policy.SNAPSHOT, owner -> {
+            throw new AssertionError("outbox overflowed");
+        });
+        long bytes;
+
+        void sendPush(byte[] line, int ownerId, int cell) {
+            if (!outbox.offerPush(line, ownerId, cell)) throw new AssertionError("outbox overflowed");
+            for (byte[] l; (l = outbox.poll()) != null; ) bytes += l.length;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.example.demo;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * JSON 行 vs 二进制（{@link BinaryCodec}）：几种典型消息的字节数，以及编码 / 解码耗时。
+ * 在测试源码里，不进发布包：mvn test-compile 后带上 target/test-classes 运行。
+ * 用法：org.example.demo.CodecBench [每项迭代次数，默认 200000]
+ */
+public class CodecBench {
+
+    private CodecBench() {}
+
+    public static void main(String[] args) throws Exception {
+        int iters = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        ObjectMapper mapper = new ObjectMapper();
+
+        Server.LoginResp login = new Server.LoginResp();
+        login.requestId = "42"; login.ok = true; login.msg = "login ok";
+        login.playerId = 1; login.playerName = "jbh"; login.coins = 230;
+        login.session = "7f1c2a3e-0d4b-4c55-9a61-2b8f0e6d9c10";
+        login.rows = 4; login.cols = 4;
+        StringBuilder cells = new StringBuilder();
+        for (int i = 0; i < 16; i++) cells.append(Server.CELL_CHARS.charAt(i % 3));
+        login.cells = cells.toString();
+        // 16 格同时成熟：一条 delta
+        Server.PushFarmDelta push = new Server.PushFarmDelta();
+        push.playerId = 1; push.coins = 230; push.since = 1000L; push.version = 1016L;
+        push.cells = new int[16];
+        for (int i = 0; i < 16; i++) push.cells[i] = i;
+        push.states = "R".repeat(16);
+        Map<String, Object> plant = Map.of("playerId", 1, "row", 2, "col", 3);
+
+        byte[] loginJson = mapper.writeValueAsBytes(login), loginBin = BinaryCodec.encodeResp(login);
+        byte[] pushJson = mapper.writeValueAsBytes(push), pushBin = BinaryCodec.encodeDelta(push);
+        ObjectNode plantNode = mapper.createObjectNode().put("type", "PLANT").put("requestId", "42");
+        plant.forEach((k, v) -> plantNode.put(k, (Integer) v));
+        byte[] plantJson = mapper.writeValueAsBytes(plantNode), plantBin = BinaryCodec.encodeRequest("PLANT", 42, plant);
+
+        System.out.printf("%-22s %8s %8s%n", "bytes", "json", "binary");
+        System.out.printf("%-22s %8d %8d%n", "LOGIN response", loginJson.length, loginBin.length);
+        System.out.printf("%-22s %8d %8d%n", "PUSH_FARM_DELTA x16", pushJson.length, pushBin.length);
+        System.out.printf("%-22s %8d %8d%n", "PLANT request", plantJson.length, plantBin.length);
+
+        System.out.printf("%-22s %8s %8s%n", "ns/op", "json", "binary");
+        bench("encode LOGIN response", iters,
+                () -> mapper.writeValueAsBytes(login), () -> BinaryCodec.encodeResp(login));
+        bench("encode PUSH x16", iters,
+                () -> mapper.writeValueAsBytes(push), () -> BinaryCodec.encodeDelta(push));
+        bench("decode PLANT request", iters,
+                () -> mapper.readTree(plantJson), () -> BinaryCodec.decodeRequest(Arrays.copyOfRange(plantBin, 4, plantBin.length)));
+        bench("decode LOGIN response", iters,
+                () -> mapper.readTree(loginJson), () -> BinaryCodec.decodeServerFrame(Arrays.copyOfRange(loginBin, 4, loginBin.length)));
+    }
+
+    private interface Op { Object run() throws Exception; }
+
+    private static void bench(String name, int iters, Op json, Op bin) throws Exception {
+        long[] ns = new long[2];
+        Op[] ops = { json, bin };
+        Object sink = null;
+        for (int round = 0; round < 3; round++) { // 前两轮预热
+            for (int k = 0; k < 2; k++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < iters; i++) sink = ops[k].run();
+                ns[k] = System.nanoTime() - t0;
+            }
+        }
+        if (sink == null) System.out.println();
+        System.out.printf("%-22s %8.0f %8.0f%n", name, (double) ns[0] / iters, (double) ns[1] / iters);
+    }
+}
@@ -0,0 +1,81 @@
+package org.example.demo;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 金币竞争测试：T 个线程对少数几个热点玩家随机做种地 / 收获 / 偷菜，
+ * 对比原来 Player.getCoins / setCoins 的读改写（会丢更新）和 {@link CoinLedger}（对账应当一致）。
+ * 在测试源码里，不进发布包：mvn test-compile 后带上 target/test-classes 运行。
+ * 用法：org.example.demo.CoinLedgerBench [线程数，默认 8] [每线程操作数，默认 1000000] [热点玩家数，默认 4]
+ */
+public class CoinLedgerBench {
+
+    private CoinLedgerBench() {}
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int ops = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        int hot = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        for (int round = 0; round < 2; round++) { // 第一轮预热
+            Player[] players = new Player[hot + 1];
+            for (int id = 1; id <= hot; id++) players[id] = new Player(id, "p" + id, "", 1000);
+            long[] plainMinted = new long[threads], plainBurned = new long[threads];
+            long t0 = System.nanoTime();
+            run(threads, t -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (int k = 0; k < ops; k++) {
+                    Player a = players[1 + rnd.nextInt(hot)], b = players[1 + rnd.nextInt(hot)];
+                    switch (rnd.nextInt(3)) {
+                        case 0 -> { if (a.getCoins() >= 10) { a.setCoins(a.getCoins() - 10); plainBurned[t] += 10; } }
+                        case 1 -> { a.setCoins(a.getCoins() + 20); plainMinted[t] += 20; }
+                        default -> {
+                            int moved = Math.min(20, b.getCoins());
+                            b.setCoins(b.getCoins() - moved);
+                            a.setCoins(a.getCoins() + moved);
+                        }
+                    }
+                }
+            });
+            long plainNs = System.nanoTime() - t0;
+            long plainTotal = 0, plainExpected = 1000L * hot;
+            for (int id = 1; id <= hot; id++) plainTotal += players[id].getCoins();
+            for (int t = 0; t < threads; t++) plainExpected += plainMinted[t] - plainBurned[t];
+
+            CoinLedger ledger = new CoinLedger();
+            for (int id = 1; id <= hot; id++) ledger.reset(id, 1000);
+            t0 = System.nanoTime();
+            run(threads, t -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (int k = 0; k < ops; k++) {
+                    int a = 1 + rnd.nextInt(hot), b = 1 + rnd.nextInt(hot);
+                    switch (rnd.nextInt(3)) {
+                        case 0 -> ledger.debit(a, 10);
+                        case 1 -> ledger.credit(a, 20);
+                        default -> ledger.transfer(b, a, 20);
+                    }
+                }
+            });
+            long ledgerNs = System.nanoTime() - t0;
+            if (round == 0) continue;
+
+            long total = (long) threads * ops;
+            System.out.printf("%d threads x %d ops on %d players%n", threads, ops, hot);
+            System.out.printf("%-16s %8.1f Mops/s  total=%d expected=%d (lost %d)%n", "Player get/set",
+                    total * 1e3 / plainNs, plainTotal, plainExpected, plainExpected - plainTotal);
+            System.out.printf("%-16s %8.1f Mops/s  %s%n", "CoinLedger", total * 1e3 / ledgerNs, ledger.audit());
+        }
+    }
+
+    private interface Body { void run(int thread); }
+
+    private static void run(int threads, Body body) throws InterruptedException {
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int idx = t;
+            ts[t] = new Thread(() -> body.run(idx));
+            ts[t].start();
+        }
+        for (Thread t : ts) t.join();
+    }
+}
@@ -0,0 +1,197 @@
+package org.example.demo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 连接密度和尾延迟：-Dfarm.io=pool（每连接一条平台线程）对比 vthread（每连接一条虚拟线程）。
+ * 每种模式起一个子进程服务器（临时数据目录，-Dfarm.port 传一个空闲的临时端口），先挂上 N 条只发过一次 PING 的空闲长连，
+ * 再让 M 个活跃客户端各自注册 / 登录后循环 VISIT_FARM 自己的农场，统计往返延迟的 p50 / p99。
+ * 服务器的线程数和常驻内存取自 /proc/&lt;pid&gt;/status（只在 Linux 上有）。
+ * 在测试源码里，不进发布包：mvn test-compile 后带上 target/test-classes 运行。
+ * 用法：org.example.demo.ConnBench [空闲连接数，默认 5000] [活跃客户端数，默认 32] [每种模式的压测秒数，默认 10]
+ */
+public class ConnBench {
+
+    private static final String[] MODES = { "pool", "vthread" };
+
+    private ConnBench() {}
+
+    public static void main(String[] args) throws Exception {
+        int idle = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int active = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.printf("%d idle + %d active connections, %d s per mode%n", idle, active, seconds);
+        for (String mode : MODES) {
+            int port = freePort();
+            Process server = startServer(mode, port);
+            List<Socket> idleConns = new ArrayList<>(idle);
+            try {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < idle; i++) idleConns.add(openIdle(port));
+                long openMs = (System.nanoTime() - t0) / 1_000_000;
+                Map<String, String> afterIdle = procStatus(server.pid());
+
+                long[] rtts = runActive(port, active, seconds);
+                Map<String, String> afterLoad = procStatus(server.pid());
+
+                Arrays.sort(rtts);
+                System.out.printf("%-8s open %5d idle in %5d ms | threads %5s rss %9s | %6d req/s  p50 %6.2f ms  p99 %6.2f ms  max %7.2f ms | after load: threads %5s rss %9s%n",
+                        mode, idle, openMs, afterIdle.get("Threads"), afterIdle.get("VmRSS"),
+                        rtts.length / seconds, pct(rtts, 0.50), pct(rtts, 0.99), rtts.length == 0 ? 0 : rtts[rtts.length - 1] / 1e6,
+                        afterLoad.get("Threads"), afterLoad.get("VmRSS"));
+            } finally {
+                for (Socket s : idleConns) {
+                    try { s.close(); } catch (IOException ignore) {}
+                }
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    /** 让系统分一个空闲端口再关掉，交给子进程去绑定（之间被别人占走的概率可以忽略） */
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    /** 用启动本程序的同一个 java 和模块路径（或类路径）起服务器 */
+    private static Process startServer(String mode, int port) throws Exception {
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<String> cmd = new ArrayList<>(List.of(java, "-Dfarm.io=" + mode, "-Dfarm.port=" + port, "-Dfarm.log.level=OFF"));
+        String modulePath = System.getProperty("jdk.module.path");
+        if (modulePath != null && !modulePath.isEmpty()) {
+            cmd.addAll(List.of("-p", modulePath, "-m", "org.example.demo/org.example.demo.Server"));
+        } else {
+            cmd.addAll(List.of("-cp", System.getProperty("java.class.path"), "org.example.demo.Server"));
+        }
+        Path dir = Files.createTempDirectory("connbench-" + mode);
+        Process p = new ProcessBuilder(cmd)
+                .directory(dir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.to(new File(dir.toFile(), "server.log")))
+                .start();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", port).close();
+                return p;
+            } catch (ConnectException e) {
+                if (!p.isAlive() || System.currentTimeMillis() > deadline) {
+                    p.destroy();
+                    throw new IOException("server (" + mode + ") did not start, see " + dir.resolve("server.log"));
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /** 连上并完成一次 PING，确保服务器已经为它起了读线程 */
+    private static Socket openIdle(int port) throws IOException {
+        Socket s = new Socket("127.0.0.1", port);
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+        s.getOutputStream().write("{\"type\":\"PING\",\"requestId\":\"0\"}\n".getBytes(StandardCharsets.UTF_8));
+        if (in.readLine() == null) throw new IOException("closed by server");
+        return s;
+    }
+
+    /** M 个平台线程各占一条连接，一问一答地发 VISIT_FARM；返回所有往返耗时（纳秒） */
+    private static long[] runActive(int port, int active, int seconds) throws Exception {
+        long[][] samples = new long[active][];
+        int[] counts = new int[active];
+        Thread[] ts = new Thread[active];
+        long runId = System.nanoTime();
+        for (int t = 0; t < active; t++) {
+            int idx = t;
+            ts[t] = new Thread(() -> {
+                String name = "bench" + runId % 100000 + "x" + idx;
+                long[] buf = new long[1 << 16];
+                int n = 0;
+                try (Socket s = new Socket("127.0.0.1", port)) {
+                    s.setTcpNoDelay(true);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                    OutputStream out = s.getOutputStream();
+                    call(in, out, "{\"type\":\"SIGNUP\",\"requestId\":\"s\",\"username\":\"" + name + "\",\"password\":\"123123\"}");
+                    String login = call(in, out, "{\"type\":\"LOGIN\",\"requestId\":\"l\",\"username\":\"" + name + "\",\"password\":\"123123\"}");
+                    int at = login.indexOf("\"playerId\":") + 11;
+                    String pid = login.substring(at, login.indexOf(',', at));
+                    byte[] visit = ("{\"type\":\"VISIT_FARM\",\"requestId\":\"v\",\"playerId\":" + pid + ",\"targetId\":" + pid + "}\n")
+                            .getBytes(StandardCharsets.UTF_8);
+                    long end = System.nanoTime() + seconds * 1_000_000_000L;
+                    while (true) {
+                        long t0 = System.nanoTime();
+                        if (t0 >= end) break;
+                        out.write(visit);
+                        readResp(in);
+                        if (n == buf.length) buf = Arrays.copyOf(buf, n * 2);
+                        buf[n++] = System.nanoTime() - t0;
+                    }
+                } catch (IOException e) {
+                    System.err.println("client " + idx + ": " + e);
+                }
+                samples[idx] = buf;
+                counts[idx] = n;
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts) t.join();
+        int total = 0;
+        for (int c : counts) total += c;
+        long[] all = new long[total];
+        for (int t = 0, k = 0; t < active; t++) {
+            System.arraycopy(samples[t], 0, all, k, counts[t]);
+            k += counts[t];
+        }
+        return all;
+    }
+
+    private static String call(BufferedReader in, OutputStream out, String line) throws IOException {
+        out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        return readResp(in);
+    }
+
+    /** 跳过推送，读到下一条响应 */
+    private static String readResp(BufferedReader in) throws IOException {
+        while (true) {
+            String l = in.readLine();
+            if (l == null) throw new IOException("closed by server");
+            if (l.contains("\"RESP\"")) return l;
+        }
+    }
+
+    private static double pct(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+
+    private static Map<String, String> procStatus(long pid) {
+        Map<String, String> m = new HashMap<>();
+        try {
+            for (String l : Files.readAllLines(Path.of("/proc/" + pid + "/status"))) {
+                int c = l.indexOf(':');
+                if (c > 0) m.put(l.substring(0, c), l.substring(c + 1).trim());
+            }
+        } catch (IOException e) {
+            m.put("Threads", "?");
+            m.put("VmRSS", "?");
+        }
+        return m;
+    }
+}
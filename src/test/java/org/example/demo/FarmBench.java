@@ -0,0 +1,176 @@
+package org.example.demo;
+
+import javafx.application.Platform;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不同农场尺寸下的内存 / 线格式 / 渲染开销：4x4（16 格）、32x32（1k）、64x64（4k），
+ * 以及偷菜配额检查的开销（原来的三张 ConcurrentHashMap 对比 Farm 里的配额字段）。
+ * 在测试源码里，不进发布包：mvn test-compile 后带上 target/test-classes 运行。
+ * 用法：org.example.demo.FarmBench [每种尺寸的农场数，默认 2000]
+ * 渲染部分需要 JavaFX 图形环境；没有时跳过。计时只含 FX 线程上记录绘制命令的开销，不含栅格化。
+ */
+public class FarmBench {
+
+    private static final int[][] SIZES = { { 4, 4 }, { 32, 32 }, { 64, 64 } };
+
+    private FarmBench() {}
+
+    public static void main(String[] args) throws Exception {
+        int farms = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        System.out.println("== server memory (" + farms + " farms each) ==");
+        heapPerFarm(4, 4, farms); // 预热，让第一次测量不受类加载和 JIT 影响
+        for (int[] sz : SIZES) {
+            long perFarm = heapPerFarm(sz[0], sz[1], farms);
+            int cells = sz[0] * sz[1];
+            System.out.printf("%2dx%-2d %5d cells: %8d B/farm (states %d B, ripeAt %d B)%n",
+                    sz[0], sz[1], cells, perFarm, 8 * ((cells + 31) / 32), 8 * cells);
+        }
+
+        System.out.println("== wire size of a full board ==");
+        for (int[] sz : SIZES) {
+            Server.PushFarmSnapshot snap = new Server.PushFarmSnapshot();
+            snap.playerId = 1; snap.rows = sz[0]; snap.cols = sz[1]; snap.coins = 230; snap.version = 1L << 40;
+            StringBuilder cells = new StringBuilder();
+            for (int i = 0; i < sz[0] * sz[1]; i++) cells.append(Server.CELL_CHARS.charAt(i % 3));
+            snap.cells = cells.toString();
+            int json = new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsBytes(snap).length + 1;
+            int bin = BinaryCodec.encodeSnapshot(snap).length;
+            System.out.printf("%2dx%-2d json=%6d B  binary=%5d B%n", sz[0], sz[1], json, bin);
+        }
+
+        System.out.println("== steal quota check + take (1024 farms) ==");
+        int stealOps = 20_000_000;
+        for (int round = 0; round < 3; round++) { // 前两轮预热
+            long maps = stealWithMaps(1024, stealOps), record = stealWithRecord(1024, stealOps);
+            if (round == 2) System.out.printf("3 maps %.1f ns/op  farm record %.1f ns/op%n",
+                    maps / (double) stealOps, record / (double) stealOps);
+        }
+
+        System.out.println("== client render ==");
+        try {
+            CompletableFuture<Void> started = new CompletableFuture<>();
+            Platform.startup(() -> started.complete(null));
+            started.get(10, TimeUnit.SECONDS);
+        } catch (Throwable e) {
+            System.out.println("skipped: no JavaFX toolkit (" + e.getMessage() + ")");
+            return;
+        }
+        for (int[] sz : SIZES) {
+            CompletableFuture<String> line = new CompletableFuture<>();
+            Platform.runLater(() -> {
+                try {
+                    line.complete(renderBench(sz[0], sz[1]));
+                } catch (Throwable e) {
+                    line.completeExceptionally(e);
+                }
+            });
+            System.out.println(line.get(60, TimeUnit.SECONDS));
+        }
+        Platform.exit();
+    }
+
+    /**
+     * 原来的偷菜路径：每次三次装箱查找，开新一轮三次 put，偷一块一次 put，一轮结束三次 remove。返回耗时（纳秒）。
+     * 每块农场 16 块成熟，一轮可偷 4 块，偷满就结束这一轮。
+     */
+    private static long stealWithMaps(int farms, int ops) {
+        Map<Integer, Integer> baselineRipe = new ConcurrentHashMap<>();
+        Map<Integer, Integer> allowedSteals = new ConcurrentHashMap<>();
+        Map<Integer, Integer> stolenSoFar = new ConcurrentHashMap<>();
+        long t0 = System.nanoTime(), taken = 0;
+        for (int k = 0; k < ops; k++) {
+            int owner = 1 + (int) ((long) k * 7919 % farms);
+            Integer baseline = baselineRipe.get(owner), allowed = allowedSteals.get(owner), stolen = stolenSoFar.get(owner);
+            if (baseline == null || allowed == null || stolen == null) {
+                baseline = 16; allowed = baseline / 4; stolen = 0;
+                baselineRipe.put(owner, baseline);
+                allowedSteals.put(owner, allowed);
+                stolenSoFar.put(owner, stolen);
+            }
+            if (stolen < allowed) {
+                stolenSoFar.put(owner, stolen + 1);
+                taken++;
+            } else {
+                baselineRipe.remove(owner);
+                allowedSteals.remove(owner);
+                stolenSoFar.remove(owner);
+            }
+        }
+        if (taken == 0) throw new AssertionError();
+        return System.nanoTime() - t0;
+    }
+
+    /** 同样的操作序列，配额放在 Farm 里：一次读 + 一次 CAS */
+    private static long stealWithRecord(int farms, int ops) {
+        Server.Farm[] all = new Server.Farm[farms + 1];
+        for (int i = 1; i <= farms; i++) all[i] = new Server.Farm(4, 4);
+        long t0 = System.nanoTime(), taken = 0;
+        for (int k = 0; k < ops; k++) {
+            Server.Farm f = all[1 + (int) ((long) k * 7919 % farms)];
+            if (f.tryTakeSteal(16)) taken++;
+            else f.resetStealQuota();
+        }
+        if (taken == 0) throw new AssertionError();
+        return System.nanoTime() - t0;
+    }
+
+    private static long heapPerFarm(int rows, int cols, int n) {
+        Runtime rt = Runtime.getRuntime();
+        Object[] keep = new Object[n];
+        long before = usedHeap(rt);
+        for (int i = 0; i < n; i++) {
+            Server.Farm f = new Server.Farm(rows, cols);
+            f.publish(); // 连同只读副本一起算
+            keep[i] = f;
+        }
+        long after = usedHeap(rt);
+        if (keep[n - 1] == null) throw new AssertionError();
+        return (after - before) / n;
+    }
+
+    private static long usedHeap(Runtime rt) {
+        for (int i = 0; i < 3; i++) System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /** FX 线程：整屏重画和 16 个脏格重画各自的平均耗时 */
+    private static String renderBench(int rows, int cols) {
+        Player p = new Player();
+        Game game = new Game(p);
+        StringBuilder cells = new StringBuilder();
+        for (int i = 0; i < rows * cols; i++) cells.append(Server.CELL_CHARS.charAt(i % 3));
+        game.applyCells(rows, cols, cells.toString());
+
+        BoardView view = new BoardView();
+        view.bind(game, i -> {});
+        view.resize(640, 640);
+        view.layout();
+        view.render();
+
+        int iters = 200;
+        long t0 = System.nanoTime();
+        for (int k = 0; k < iters; k++) {
+            game.markAllDirty();
+            view.render();
+        }
+        long full = (System.nanoTime() - t0) / iters;
+
+        t0 = System.nanoTime();
+        for (int k = 0; k < iters; k++) {
+            for (int j = 0; j < 16; j++) {
+                int i = (k * 16 + j) * 7 % (rows * cols);
+                game.setCellState(i / cols, i % cols, Game.PlotState.values()[(k + j) % 3]);
+            }
+            view.render();
+        }
+        long dirty = (System.nanoTime() - t0) / iters;
+        return String.format("%2dx%-2d full=%7.1f us  16 dirty=%6.1f us  nodes=%d (was %d buttons)",
+                rows, cols, full / 1e3, dirty / 1e3, view.getChildrenUnmodifiable().size(), rows * cols);
+    }
+}
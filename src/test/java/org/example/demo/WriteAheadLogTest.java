@@ -0,0 +1,185 @@
+package org.example.demo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * WAL 的落盘 / 重放往返：每种记录类型、末尾半条记录、校验和不对、压缩时快照写失败。
+ */
+class WriteAheadLogTest {
+
+    /** 一条 CELL 记录在段文件里占的字节数：[len][crc] + 1 + 4 + 3 + 8 */
+    private static final int CELL_RECORD = 8 + 16;
+
+    @TempDir
+    Path dir;
+
+    /** 把重放回调记成一行行文本，方便整体比较 */
+    private static final class Recorder implements WriteAheadLog.Replayer {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void cell(int playerId, int row, int col, int state, long ripeAt) {
+            events.add("cell " + playerId + " " + row + "," + col + " " + state + " " + ripeAt);
+        }
+
+        @Override
+        public void coins(int playerId, int coins) {
+            events.add("coins " + playerId + " " + coins);
+        }
+
+        @Override
+        public void friend(int a, int b) {
+            events.add("friend " + a + " " + b);
+        }
+
+        @Override
+        public void signup(int id, String name, String password, int coins) {
+            events.add("signup " + id + " " + name + " " + password + " " + coins);
+        }
+    }
+
+    private WriteAheadLog open(Recorder r) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, 64);
+        wal.replay(r);
+        wal.start();
+        return wal;
+    }
+
+    /** 重新打开目录、重放一遍，返回重放的记录数 */
+    private int reopen(Recorder r) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, 64);
+        int n = wal.replay(r);
+        wal.start();
+        wal.close();
+        return n;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> s = Files.list(dir)) {
+            return s.filter(p -> p.getFileName().toString().startsWith("wal-")).sorted().toList();
+        }
+    }
+
+    @Test
+    void replaysEveryRecordType() throws IOException {
+        WriteAheadLog wal = open(new Recorder());
+        wal.appendSignup(7, "小明", "123123", 100);
+        wal.appendCell(7, 2, 3, Server.PlotState.GROWING.ordinal(), 1234L);
+        wal.appendCoins(7, () -> 90);
+        wal.appendFriend(1, 7);
+        wal.appendCells(7, () -> 70, 4, new int[] { 1, 6 }, 2, new int[] { 1, 2 }, new long[] { 99L, 0L });
+        wal.sync().join();
+        wal.close();
+
+        Recorder r = new Recorder();
+        assertEquals(5, reopen(r));
+        assertEquals(List.of(
+                "signup 7 小明 123123 100",
+                "cell 7 2,3 1 1234",
+                "coins 7 90",
+                "friend 1 7",
+                "cell 7 0,1 1 99",
+                "cell 7 1,2 2 0",
+                "coins 7 70"), r.events);
+    }
+
+    @Test
+    void truncatedTailStopsAtLastGoodRecord() throws IOException {
+        WriteAheadLog wal = open(new Recorder());
+        for (int i = 0; i < 3; i++) wal.appendCell(1, 0, i, 2, 0L);
+        wal.sync().join();
+        wal.close();
+
+        Path seg = segments().get(0);
+        assertEquals(3 * CELL_RECORD, Files.size(seg));
+        try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.WRITE)) {
+            ch.truncate(3 * CELL_RECORD - 5); // 崩溃时最后一条只写了一半
+        }
+
+        Recorder r = new Recorder();
+        assertEquals(2, reopen(r));
+        assertEquals(List.of("cell 1 0,0 2 0", "cell 1 0,1 2 0"), r.events);
+    }
+
+    @Test
+    void badChecksumStopsReplayOfTheSegment() throws IOException {
+        WriteAheadLog wal = open(new Recorder());
+        for (int i = 0; i < 3; i++) wal.appendCell(1, 0, i, 2, 0L);
+        wal.sync().join();
+        wal.close();
+
+        Path seg = segments().get(0);
+        try (FileChannel ch = FileChannel.open(seg, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long at = CELL_RECORD + 8 + 5; // 第二条记录 payload 里的 row
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, at);
+            b.put(0, (byte) (b.get(0) ^ 0x7F)).rewind();
+            ch.write(b, at);
+        }
+
+        Recorder r = new Recorder();
+        assertEquals(1, reopen(r));
+        assertEquals(List.of("cell 1 0,0 2 0"), r.events);
+    }
+
+    @Test
+    void compactionKeepsSegmentsWhenSnapshotFails() throws IOException {
+        WriteAheadLog wal = open(new Recorder());
+        wal.appendCoins(1, () -> 230);
+        wal.sync().join();
+
+        IOException e = assertThrows(IOException.class, () -> wal.compact(() -> {
+            throw new IOException("disk full");
+        }));
+        assertEquals("disk full", e.getMessage());
+        assertEquals(2, segments().size()); // 旧段还在，另有切出来的新段
+
+        wal.appendCoins(1, () -> 250);
+        wal.sync().join();
+        wal.close();
+
+        Recorder r = new Recorder();
+        assertEquals(2, reopen(r));
+        assertEquals(List.of("coins 1 230", "coins 1 250"), r.events);
+    }
+
+    @Test
+    void compactionDropsSegmentsCoveredBySnapshot() throws IOException {
+        WriteAheadLog wal = open(new Recorder());
+        wal.appendCoins(1, () -> 230);
+        wal.sync().join();
+
+        List<Path> before = segments();
+        boolean[] written = new boolean[1];
+        long keepFrom = wal.compact(() -> written[0] = true);
+        assertTrue(written[0]);
+        List<Path> after = segments();
+        assertEquals(1, after.size());
+        assertFalse(before.contains(after.get(0)));
+        assertEquals(String.format("wal-%08d.log", keepFrom), after.get(0).getFileName().toString());
+
+        wal.appendCoins(1, () -> 250);
+        wal.sync().join();
+        wal.close();
+
+        Recorder r = new Recorder();
+        assertEquals(1, reopen(r));
+        assertEquals(List.of("coins 1 250"), r.events);
+    }
+}